@@ -27,7 +27,7 @@ public class AdaptiveFetcherPolicy extends FetcherPolicy {
     public FetchRequest getFetchRequest(long now, long crawlDelay, int maxUrls) {
         // we want to fetch maxUrls in the remaining time, but the min delay might constrain us.
         
-        if ((getCrawlDelay() == 0) || (maxUrls == 0)) {
+        if ((crawlDelay == 0) || (maxUrls == 0)) {
             return new FetchRequest(Math.min(maxUrls, getMaxRequestsPerConnection()), now);
         }
 
@@ -37,8 +37,10 @@ public class AdaptiveFetcherPolicy extends FetcherPolicy {
         // aborted.
         long fetchInterval = Math.max(DEFAULT_FETCH_INTERVAL, getCrawlEndTime() - now);
         
-        // Crawl delay must be between the min crawl delay and the default crawl delay.
-        long customCrawlDelay = Math.max(getCrawlDelay(), Math.min(DEFAULT_CRAWL_DELAY, fetchInterval / maxUrls));
+        // Crawl delay must be between the min crawl delay and the default crawl delay. The
+        // min is what we were passed, which can be adjusted per host (e.g. by a HostRateController)
+        // based on how the server is responding.
+        long customCrawlDelay = Math.max(crawlDelay, Math.min(DEFAULT_CRAWL_DELAY, fetchInterval / maxUrls));
         
         // Figure out how many URLs we can get in 5 minutes,or the remaining time (whatever is less).
         int numUrls = Math.min((int)(Math.min(DEFAULT_FETCH_INTERVAL, fetchInterval) / customCrawlDelay), maxUrls);
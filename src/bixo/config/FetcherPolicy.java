@@ -28,6 +28,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 import bixo.fetcher.FetchRequest;
+import bixo.robots.RobotRules;
 
 /**
  * Definition of policy for fetches.
@@ -55,12 +56,15 @@ public class FetcherPolicy implements Serializable {
 
     public static final int NO_MIN_RESPONSE_RATE = Integer.MIN_VALUE;
     public static final long NO_CRAWL_END_TIME = Long.MAX_VALUE;
+    public static final long NO_MAX_FETCH_TIME = Long.MAX_VALUE;
     public static final int NO_REDIRECTS = 0;
     
     public static final int DEFAULT_MIN_RESPONSE_RATE = NO_MIN_RESPONSE_RATE;
     public static final int DEFAULT_MAX_CONTENT_SIZE = Integer.MAX_VALUE;
     public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+    public static final int DEFAULT_MAX_STREAMS_PER_HOST = 10;
     public static final long DEFAULT_CRAWL_END_TIME = NO_CRAWL_END_TIME;
+    public static final long DEFAULT_MAX_FETCH_TIME = NO_MAX_FETCH_TIME;
     public static final int DEFAULT_MAX_REDIRECTS = 20;
     public static final String DEFAULT_ACCEPT_LANGUAGE = "en-us,en-gb,en;q=0.7,*;q=0.3";
     
@@ -85,10 +89,13 @@ public class FetcherPolicy implements Serializable {
     protected long _crawlDelay;            // Delay (in milliseconds) between requests
     private int _maxRedirects;
     private int _maxConnectionsPerHost; // 
+    private int _maxStreamsPerHost;     // Max # of concurrent requests to one host over a multiplexed (HTTP/2) connection
     private String _acceptLanguage;    // What to pass for the Accept-Language request header
     private Set<String> _validMimeTypes;    // Set of mime-types that we'll accept.
+    private boolean _sniffContentType;      // Check the start of the content against valid mime-types?
     private int _maxRequestsPerConnection;  // Max # of URLs to request in any one connection
     private long _requestTimeout;           // Max time for any given set of URLs (termination timeout is based on this)
+    private long _maxFetchTime;             // Max time for one URL, including redirects, retries and reading the content
 
     // TODO KKr - move these into a CrawlPolicy class, and call it CrawlMode
     private FetcherMode _fetcherMode;       // Should we skip URLs when they back up for a domain?
@@ -119,13 +126,16 @@ public class FetcherPolicy implements Serializable {
         // For rarely used parameters, we'll set it to default values and then let callers set them  individually.
         _acceptLanguage = DEFAULT_ACCEPT_LANGUAGE;
         _validMimeTypes = new HashSet<String>();
+        _sniffContentType = false;
         _maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        _maxStreamsPerHost = DEFAULT_MAX_STREAMS_PER_HOST;
         _maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
         _fetcherMode = FetcherMode.COMPLETE;
         _maxUrlsPerServer = DEFAULT_MAX_URLS_PER_SERVER;
         _redirectMode = _maxRedirects > 0 ? RedirectMode.FOLLOW_ALL : RedirectMode.FOLLOW_NONE;
         
         _requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+        _maxFetchTime = DEFAULT_MAX_FETCH_TIME;
     }
 
     public long getDefaultFetchInterval() {
@@ -144,6 +154,37 @@ public class FetcherPolicy implements Serializable {
         _crawlEndTime = crawlEndTime;
     }
 
+    public long getMaxFetchTime() {
+        return _maxFetchTime;
+    }
+
+    /**
+     * Set the max time (in milliseconds) for fetching a single URL, from start
+     * to finish - connecting, following redirects, retrying, and reading the
+     * content. Fetches that take longer are aborted.
+     * 
+     * @param maxFetchTime
+     */
+    public void setMaxFetchTime(long maxFetchTime) {
+        _maxFetchTime = maxFetchTime;
+    }
+
+    /**
+     * Return the time by which a fetch that starts at <startTime> has to be
+     * done, based on the max fetch time and the crawl end time.
+     * 
+     * @param startTime
+     * @return deadline, or NO_CRAWL_END_TIME if there isn't one.
+     */
+    public long getFetchDeadline(long startTime) {
+        long result = getCrawlEndTime();
+        if ((getMaxFetchTime() != NO_MAX_FETCH_TIME) && (startTime + getMaxFetchTime() > startTime)) {
+            result = Math.min(result, startTime + getMaxFetchTime());
+        }
+        
+        return result;
+    }
+
     public int getMaxConnectionsPerHost() {
         return _maxConnectionsPerHost;
     }
@@ -152,6 +193,19 @@ public class FetcherPolicy implements Serializable {
         _maxConnectionsPerHost = maxConnectionsPerHost;
     }
     
+    /**
+     * Return the max number of concurrent requests to one host, when they're
+     * multiplexed as streams over a single HTTP/2 connection.
+     * @return max streams per host
+     */
+    public int getMaxStreamsPerHost() {
+        return _maxStreamsPerHost;
+    }
+    
+    public void setMaxStreamsPerHost(int maxStreamsPerHost) {
+        _maxStreamsPerHost = maxStreamsPerHost;
+    }
+    
     public int getMaxRequestsPerConnection() {
         return _maxRequestsPerConnection;
     }
@@ -189,6 +243,19 @@ public class FetcherPolicy implements Serializable {
         _crawlDelay = crawlDelay;
     }
     
+    /**
+     * Return the delay between requests to a site with robots.txt <rules>. This
+     * is the site's Crawl-delay if it's longer than ours, but never longer than
+     * the fetch interval, so that we still get at least one URL per interval.
+     * 
+     * @param rules
+     * @return crawl delay in milliseconds
+     */
+    public long getCrawlDelay(RobotRules rules) {
+        long robotsCrawlDelay = Math.min(rules.getCrawlDelay(), getDefaultFetchInterval());
+        return Math.max(getCrawlDelay(), robotsCrawlDelay);
+    }
+    
     public int getMaxRedirects() {
         return _maxRedirects;
     }
@@ -221,6 +288,60 @@ public class FetcherPolicy implements Serializable {
         _validMimeTypes.add(validMimeType);
     }
     
+    /**
+     * Return whether <mimeType> (which can be a full Content-Type header value,
+     * with parameters) is one we want to fetch. Valid mime-types can end with
+     * a '*' to match any mime-type with that prefix, e.g. "text/*". If there are
+     * no valid mime-types, or <mimeType> is missing, everything is valid.
+     * 
+     * @param mimeType
+     * @return true if content with this mime-type should be fetched
+     */
+    public boolean isValidMimeType(String mimeType) {
+        if (_validMimeTypes.isEmpty() || (mimeType == null)) {
+            return true;
+        }
+        
+        int paramsStart = mimeType.indexOf(';');
+        if (paramsStart != -1) {
+            mimeType = mimeType.substring(0, paramsStart);
+        }
+        
+        mimeType = mimeType.trim().toLowerCase();
+        if (mimeType.length() == 0) {
+            return true;
+        }
+        
+        for (String validMimeType : _validMimeTypes) {
+            String pattern = validMimeType.trim().toLowerCase();
+            if (pattern.endsWith("*")) {
+                if (mimeType.startsWith(pattern.substring(0, pattern.length() - 1))) {
+                    return true;
+                }
+            } else if (mimeType.equals(pattern)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    public boolean isSniffContentType() {
+        return _sniffContentType;
+    }
+    
+    /**
+     * If set, the first bytes of the content are also checked against the valid
+     * mime-types, to catch responses with a missing or wrong Content-Type. Only
+     * formats that can be recognized by their signature (images, video, archives,
+     * etc) are detected, so this won't reject text content.
+     * 
+     * @param sniffContentType
+     */
+    public void setSniffContentType(boolean sniffContentType) {
+        _sniffContentType = sniffContentType;
+    }
+    
     public RedirectMode getRedirectMode() {
         return _redirectMode;
     }
@@ -323,12 +444,15 @@ public class FetcherPolicy implements Serializable {
         result = prime * result + ((_fetcherMode == null) ? 0 : _fetcherMode.hashCode());
         result = prime * result + _maxConnectionsPerHost;
         result = prime * result + _maxContentSize;
+        result = prime * result + (int) (_maxFetchTime ^ (_maxFetchTime >>> 32));
         result = prime * result + _maxRedirects;
         result = prime * result + _maxRequestsPerConnection;
+        result = prime * result + _maxStreamsPerHost;
         result = prime * result + _maxUrlsPerServer;
         result = prime * result + _minResponseRate;
         result = prime * result + ((_redirectMode == null) ? 0 : _redirectMode.hashCode());
         result = prime * result + (int) (_requestTimeout ^ (_requestTimeout >>> 32));
+        result = prime * result + (_sniffContentType ? 1231 : 1237);
         result = prime * result + ((_validMimeTypes == null) ? 0 : _validMimeTypes.hashCode());
         return result;
     }
@@ -360,10 +484,14 @@ public class FetcherPolicy implements Serializable {
             return false;
         if (_maxContentSize != other._maxContentSize)
             return false;
+        if (_maxFetchTime != other._maxFetchTime)
+            return false;
         if (_maxRedirects != other._maxRedirects)
             return false;
         if (_maxRequestsPerConnection != other._maxRequestsPerConnection)
             return false;
+        if (_maxStreamsPerHost != other._maxStreamsPerHost)
+            return false;
         if (_maxUrlsPerServer != other._maxUrlsPerServer)
             return false;
         if (_minResponseRate != other._minResponseRate)
@@ -375,6 +503,8 @@ public class FetcherPolicy implements Serializable {
             return false;
         if (_requestTimeout != other._requestTimeout)
             return false;
+        if (_sniffContentType != other._sniffContentType)
+            return false;
         if (_validMimeTypes == null) {
             if (other._validMimeTypes != null)
                 return false;
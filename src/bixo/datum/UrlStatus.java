@@ -17,6 +17,7 @@ public enum UrlStatus {
     // Not fetched due to mid-fetch issues
     SKIPPED_INTERRUPTED,        // Fetch process was interrupted.
     SKIPPED_INEFFICIENT,        // Skipped because we were blocked on domain (running with skip-blocked fetch policy)
+    SKIPPED_HOST_UNAVAILABLE,   // Skipped because the host kept failing (circuit breaker is open)
     ABORTED_SLOW_RESPONSE,      // Response rate < min set in fetch policy
     ABORTED_INVALID_MIMETYPE,   // Response type != valid types set in fetch policy
     
@@ -37,6 +38,7 @@ public enum UrlStatus {
     ERROR_INVALID_URL,
     ERROR_IOEXCEPTION,
     
+    UNMODIFIED, // Not fetched, since it hasn't changed since the last fetch (HTTP 304)
     FETCHED;    // Successfully fetched
 
 }
@@ -39,6 +39,12 @@ public class AbortedFetchException extends BaseFetchException {
         case INVALID_MIMETYPE:
             return UrlStatus.ABORTED_INVALID_MIMETYPE;
             
+        case TIME_LIMIT:
+            return UrlStatus.SKIPPED_TIME_LIMIT;
+            
+        case HOST_UNAVAILABLE:
+            return UrlStatus.SKIPPED_HOST_UNAVAILABLE;
+            
         case INTERRUPTED:
             return UrlStatus.SKIPPED_INTERRUPTED;
             
@@ -5,5 +5,7 @@ public enum AbortedFetchReason {
     
     SLOW_RESPONSE_RATE,     // Response rate back from server was below minimum.
     INVALID_MIMETYPE,       // FetcherPolicy doesn't specify this as a valid mime-type
+    TIME_LIMIT,             // Fetch took longer than the max fetch time, or ran past the crawl end time
+    HOST_UNAVAILABLE,       // Host has failed too many times in a row, so we didn't try (circuit breaker is open)
     INTERRUPTED;            // Fetch was interrupted (typically by FetchBuffer calling executor.terminate())
 }
@@ -3,6 +3,7 @@ package bixo.exceptions;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.net.UnknownHostException;
 
 import bixo.datum.UrlStatus;
 
@@ -19,6 +20,10 @@ public class IOFetchException extends BaseFetchException {
 
     @Override
     public UrlStatus mapToUrlStatus() {
+        if (getCause() instanceof UnknownHostException) {
+            return UrlStatus.SKIPPED_UNKNOWN_HOST;
+        }
+        
         return UrlStatus.ERROR_IOEXCEPTION;
     }
     
@@ -0,0 +1,810 @@
+package bixo.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpStatus;
+import org.apache.log4j.Logger;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.UserAgent;
+import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.datum.HttpHeaders;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.UrlFetchException;
+import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+
+/**
+ * Non-blocking fetcher, built on the selector-based JDK HttpClient. Fetches are
+ * started via {@link #getAsync(String, List)}, and complete on a small pool of
+ * worker threads, so thousands of requests can be in flight without needing an
+ * OS thread per socket.
+ *
+ * Redirects are handled here (not by HttpClient) so that the FetcherPolicy
+ * redirect mode and max redirects work the same way as with SimpleHttpFetcher,
+ * and failures are mapped to the same BaseFetchException subclasses.
+ *
+ * Note that maxThreads is the number of worker threads, not the number of
+ * concurrent fetches. Concurrent requests to one host are limited to the policy's
+ * max connections per host, or to its max streams per host once we know that
+ * host's requests are being multiplexed over an HTTP/2 connection.
+ */
+@SuppressWarnings("serial")
+public class AsyncHttpFetcher extends BaseFetcher {
+  private static Logger LOGGER = Logger.getLogger(AsyncHttpFetcher.class);
+
+  private static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
+  private static final int DEFAULT_CONNECTION_TIMEOUT = 30 * 1000;
+
+  // Nothing blocks on I/O, so we only need a few threads to run the
+  // completion handlers.
+  private static final int DEFAULT_MAX_THREADS = 4;
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private static final String COOKIE = "Cookie";
+
+  // Max number of hosts we remember as using HTTP/2.
+  private static final int MAX_HTTP2_HOSTS = 100000;
+
+  private HttpClient.Version _httpVersion;
+  private int _socketTimeout;
+  private int _connectionTimeout;
+
+  transient private HttpClient _httpClient;
+  transient private ExecutorService _executor;
+  transient private Map<String, HostPermits> _hostPermits;
+  transient private Set<String> _http2Hosts;
+  transient private Set<FetchState> _activeFetches;
+  transient private volatile boolean _aborted;
+
+  /**
+   * Limit on the number of concurrent requests to one host. Tasks that can't
+   * get a permit are queued up (not blocked), and run when a permit is released.
+   *
+   * Once all permits are released and nothing is waiting, the permits are
+   * retired (and removed from the map), so we don't keep one per host for
+   * the whole crawl. A retired instance won't take new tasks.
+   */
+  private static class HostPermits {
+    private final String _host;
+    private int _maxPermits;
+    private int _available;
+    private boolean _retired;
+    private final ArrayDeque<Runnable> _waiting;
+
+    public HostPermits(String host, int maxPermits) {
+      _host = host;
+      _maxPermits = maxPermits;
+      _available = maxPermits;
+      _retired = false;
+      _waiting = new ArrayDeque<Runnable>();
+    }
+
+    public synchronized int getMaxPermits() {
+      return _maxPermits;
+    }
+
+    /**
+     * Change the limit. If it's lowered below what's in use, the available
+     * count goes negative until enough permits have been released.
+     */
+    public void setMaxPermits(int maxPermits, Executor executor) {
+      List<Runnable> toRun = new ArrayList<Runnable>();
+
+      synchronized (this) {
+        _available += maxPermits - _maxPermits;
+        _maxPermits = maxPermits;
+
+        while ((_available > 0) && !_waiting.isEmpty()) {
+          _available -= 1;
+          toRun.add(_waiting.poll());
+        }
+      }
+
+      for (Runnable task : toRun) {
+        executor.execute(task);
+      }
+    }
+
+    /**
+     * Run <task> now if a permit is available, otherwise queue it up.
+     *
+     * @return false if these permits have been retired, so the task wasn't
+     *         run or queued.
+     */
+    public boolean acquire(Runnable task) {
+      synchronized (this) {
+        if (_retired) {
+          return false;
+        } else if (_available <= 0) {
+          _waiting.add(task);
+          return true;
+        }
+
+        _available -= 1;
+      }
+
+      task.run();
+      return true;
+    }
+
+    /**
+     * @return true if these permits are now idle, and have been retired.
+     */
+    public boolean release(Executor executor) {
+      Runnable next;
+      synchronized (this) {
+        next = (_available >= 0) ? _waiting.poll() : null;
+        if (next == null) {
+          _available += 1;
+          _retired = (_available == _maxPermits);
+          return _retired;
+        }
+      }
+
+      // Permit is handed directly to the next waiting task.
+      executor.execute(next);
+      return false;
+    }
+  }
+
+  /**
+   * Everything we need to track for one fetch, across redirect hops.
+   */
+  private static class FetchState {
+    private final String _url;
+    private final List<Tuple2<?, ?>> _headers;
+    private final CompletableFuture<FetchedResult> _future;
+    private final CookieManager _cookies;
+
+    private URI _uri;
+    private int _numRedirects;
+    private String _newBaseUrl;
+    private HostPermits _permits;
+    private volatile CompletableFuture<HttpResponse<byte[]>> _exchange;
+
+    public FetchState(String url, URI uri, List<Tuple2<?, ?>> headers) {
+      _url = url;
+      _uri = uri;
+      _headers = headers;
+      _future = new CompletableFuture<FetchedResult>();
+      // Cookies only last for this fetch, and (by default) are only accepted
+      // from the server that set them, and only sent back where they match
+      // the domain and path.
+      _cookies = new CookieManager();
+    }
+  }
+
+  /**
+   * Receives the response body as it's read off the wire, enforcing the max
+   * content size and min response rate from the fetcher policy.
+   */
+  private class ContentSubscriber implements HttpResponse.BodySubscriber<byte[]> {
+    private final String _url;
+    private final int _targetLength;
+    private final boolean _truncated;
+    private final long _readStartTime;
+    private final CompletableFuture<byte[]> _body;
+    private final ByteArrayOutputStream _out;
+    private final byte[] _buffer;
+
+    private Flow.Subscription _subscription;
+    private int _totalRead;
+    private int _readRequests;
+    private long _readRate;
+
+    public ContentSubscriber(String url, int targetLength, boolean truncated, long readStartTime) {
+      _url = url;
+      _targetLength = targetLength;
+      _truncated = truncated;
+      _readStartTime = readStartTime;
+      _body = new CompletableFuture<byte[]>();
+      _out = new ByteArrayOutputStream(Math.min(targetLength, BUFFER_SIZE));
+      _buffer = new byte[BUFFER_SIZE];
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      _subscription = subscription;
+
+      if (_targetLength == 0) {
+        _subscription.cancel();
+        _body.complete(new byte[0]);
+      } else {
+        _subscription.request(1);
+      }
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+      if (_body.isDone()) {
+        return;
+      }
+
+      for (ByteBuffer item : items) {
+        while (item.hasRemaining() && (_totalRead < _targetLength)) {
+          int len = Math.min(_buffer.length, Math.min(item.remaining(), _targetLength - _totalRead));
+          item.get(_buffer, 0, len);
+          _out.write(_buffer, 0, len);
+          _totalRead += len;
+        }
+      }
+
+      _readRequests += 1;
+
+      // Assume read time is at least one millisecond, to avoid DBZ exception.
+      long totalReadTime = Math.max(1, System.currentTimeMillis() - _readStartTime);
+      _readRate = (_totalRead * 1000L) / totalReadTime;
+
+      if (_aborted) {
+        _subscription.cancel();
+        _body.completeExceptionally(new AbortedFetchException(_url, AbortedFetchReason.INTERRUPTED));
+      } else if (_totalRead >= _targetLength) {
+        if (_truncated) {
+          // Server has more than we want, so don't wait for the rest.
+          _subscription.cancel();
+          _body.complete(_out.toByteArray());
+        } else {
+          // Let the response complete normally, so the connection gets reused.
+          _subscription.request(1);
+        }
+      } else if ((_readRequests > 1) && (_readRate < _fetcherPolicy.getMinResponseRate())) {
+        // Same as SimpleHttpFetcher, we don't bail on the first read cycle.
+        _subscription.cancel();
+        _body.completeExceptionally(new AbortedFetchException(_url, "Slow response rate of " + _readRate + " bytes/sec",
+            AbortedFetchReason.SLOW_RESPONSE_RATE));
+      } else {
+        _subscription.request(1);
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      _body.completeExceptionally(t);
+    }
+
+    @Override
+    public void onComplete() {
+      _body.complete(_out.toByteArray());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getBody() {
+      return _body;
+    }
+
+    public int getReadRate() {
+      return (int) _readRate;
+    }
+  }
+
+  public AsyncHttpFetcher(UserAgent userAgent) {
+    this(DEFAULT_MAX_THREADS, userAgent);
+  }
+
+  public AsyncHttpFetcher(int maxThreads, UserAgent userAgent) {
+    this(maxThreads, new FetcherPolicy(), userAgent);
+  }
+
+  public AsyncHttpFetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
+    super(maxThreads, fetcherPolicy, userAgent);
+
+    _httpVersion = HttpClient.Version.HTTP_1_1;
+    _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+
+    // Just to be explicit, we rely on lazy initialization of this so that
+    // we don't have to worry about serializing it.
+    _httpClient = null;
+  }
+
+  public HttpClient.Version getHttpVersion() {
+    return _httpVersion;
+  }
+
+  public void setHttpVersion(HttpClient.Version httpVersion) {
+    if (_httpClient == null) {
+      _httpVersion = httpVersion;
+    } else {
+      throw new IllegalStateException("Can't change HTTP version after HttpClient has been initialized");
+    }
+  }
+
+  public int getSocketTimeout() {
+    return _socketTimeout;
+  }
+
+  /**
+   * Set the max time to wait for the response headers, for each redirect hop.
+   *
+   * @param socketTimeoutInMs
+   */
+  public void setSocketTimeout(int socketTimeoutInMs) {
+    if (_httpClient == null) {
+      _socketTimeout = socketTimeoutInMs;
+    } else {
+      throw new IllegalStateException("Can't change socket timeout after HttpClient has been initialized");
+    }
+  }
+
+  public int getConnectionTimeout() {
+    return _connectionTimeout;
+  }
+
+  public void setConnectionTimeout(int connectionTimeoutInMs) {
+    if (_httpClient == null) {
+      _connectionTimeout = connectionTimeoutInMs;
+    } else {
+      throw new IllegalStateException("Can't change connection timeout after HttpClient has been initialized");
+    }
+  }
+
+  public CompletableFuture<FetchedResult> getAsync(String url) {
+    return getAsync(url, null);
+  }
+
+  /**
+   * Start fetching <url>. The returned future completes with the FetchedResult,
+   * or exceptionally with the same BaseFetchException that SimpleHttpFetcher.get()
+   * would have thrown.
+   *
+   * @param url
+   * @param headers
+   *          Optional extra request headers, or null.
+   * @return future for result of fetch
+   */
+  public CompletableFuture<FetchedResult> getAsync(String url, List<Tuple2<?, ?>> headers) {
+    init();
+
+    LOGGER.trace("Fetching " + url);
+
+    URI uri;
+    try {
+      uri = new URI(url);
+    } catch (URISyntaxException e) {
+      CompletableFuture<FetchedResult> result = new CompletableFuture<FetchedResult>();
+      result.completeExceptionally(new UrlFetchException(url, e.getMessage()));
+      return result;
+    }
+
+    final FetchState state = new FetchState(url, uri, headers);
+    _activeFetches.add(state);
+    state._future.whenComplete((result, t) -> {
+      _activeFetches.remove(state);
+
+      if ((t != null) && LOGGER.isTraceEnabled()) {
+        LOGGER.trace(String.format("Exception fetching %s", state._url), t);
+      }
+    });
+
+    startHop(state);
+    return state._future;
+  }
+
+  private void startHop(final FetchState state) {
+    if (_aborted) {
+      state._future.completeExceptionally(new AbortedFetchException(state._url, AbortedFetchReason.INTERRUPTED));
+      return;
+    }
+
+    String host = state._uri.getHost();
+    while (true) {
+      state._permits = getHostPermits(host);
+      if (state._permits.acquire(() -> sendRequest(state))) {
+        return;
+      }
+
+      // We got permits that were just retired, so make sure they're gone
+      // before trying again.
+      _hostPermits.remove(host, state._permits);
+    }
+  }
+
+  private void releasePermit(FetchState state) {
+    HostPermits permits = state._permits;
+    if (permits.release(_executor)) {
+      _hostPermits.remove(permits._host, permits);
+    }
+  }
+
+  private void sendRequest(final FetchState state) {
+    HttpRequest request;
+
+    try {
+      HttpRequest.Builder builder = HttpRequest.newBuilder(state._uri);
+      builder.GET();
+      builder.timeout(Duration.ofMillis(_socketTimeout));
+      builder.header("User-Agent", _userAgent.getUserAgentString());
+      builder.header(HttpHeaderNames.ACCEPT, SimpleHttpFetcher.DEFAULT_ACCEPT);
+      builder.header(HttpHeaderNames.ACCEPT_LANGUAGE, _fetcherPolicy.getAcceptLanguage());
+      builder.header(HttpHeaderNames.ACCEPT_CHARSET, SimpleHttpFetcher.DEFAULT_ACCEPT_CHARSET);
+
+      if (state._headers != null) {
+        for (Tuple2<?, ?> t : state._headers) {
+          try {
+            builder.setHeader(t.getKey().toString(), t.getValue().toString());
+          } catch (IllegalArgumentException e) {
+            // HttpClient won't let us set restricted headers like Host
+            LOGGER.debug("Ignoring restricted request header: " + t.getKey());
+          }
+        }
+      }
+
+      List<String> cookies = getCookies(state);
+      if (!cookies.isEmpty()) {
+        builder.header(COOKIE, StringUtils.join(cookies.iterator(), "; "));
+      }
+
+      request = builder.build();
+    } catch (IllegalArgumentException e) {
+      releasePermit(state);
+      state._future.completeExceptionally(new UrlFetchException(state._url, e.getMessage()));
+      return;
+    }
+
+    final long readStartTime = System.currentTimeMillis();
+    final ContentSubscriber[] subscriber = new ContentSubscriber[1];
+
+    HttpResponse.BodyHandler<byte[]> bodyHandler = (responseInfo) -> {
+      subscriber[0] = makeSubscriber(state, responseInfo, readStartTime);
+      return subscriber[0];
+    };
+
+    CompletableFuture<HttpResponse<byte[]>> exchange = _httpClient.sendAsync(request, bodyHandler);
+    state._exchange = exchange;
+    if (_aborted) {
+      // abort() might have missed this exchange.
+      exchange.cancel(true);
+    }
+
+    exchange.whenComplete((response, t) -> {
+      // Do this while we still hold the permit, so the permits can't have
+      // been retired.
+      if ((response != null) && (response.version() == HttpClient.Version.HTTP_2)) {
+        setHttp2Host(state);
+      }
+
+      releasePermit(state);
+
+      if (t != null) {
+        state._future.completeExceptionally(mapException(state._url, t));
+      } else {
+        try {
+          handleResponse(state, response, subscriber[0].getReadRate());
+        } catch (BaseFetchException e) {
+          state._future.completeExceptionally(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return cookies we've been given during this fetch that apply to the
+   *         current request URI.
+   */
+  private static List<String> getCookies(FetchState state) {
+    try {
+      List<String> result = state._cookies.get(state._uri, Collections.<String, List<String>> emptyMap()).get(COOKIE);
+      return (result == null) ? Collections.<String> emptyList() : result;
+    } catch (IOException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  private ContentSubscriber makeSubscriber(FetchState state, HttpResponse.ResponseInfo responseInfo, long readStartTime) {
+    int httpStatus = responseInfo.statusCode();
+    if (isFollowedRedirect(httpStatus) || (httpStatus < 200) || (httpStatus >= 300)) {
+      // We never use the body of a redirect or an error response.
+      return new ContentSubscriber(state._url, 0, true, readStartTime);
+    }
+
+    String contentType = responseInfo.headers().firstValue(HttpHeaderNames.CONTENT_TYPE).orElse(null);
+    if (!_fetcherPolicy.isValidMimeType(contentType)) {
+      // Don't read any of the body, handleResponse() will reject it.
+      return new ContentSubscriber(state._url, 0, true, readStartTime);
+    }
+
+    // Figure out how much data we want to try to fetch.
+    int targetLength = _fetcherPolicy.getMaxContentSize();
+    boolean truncated = true;
+    String contentLengthStr = responseInfo.headers().firstValue(HttpHeaderNames.CONTENT_LENGTH).orElse(null);
+    if (contentLengthStr != null) {
+      try {
+        int contentLength = Integer.parseInt(contentLengthStr);
+        if (contentLength <= targetLength) {
+          targetLength = contentLength;
+          truncated = false;
+        }
+      } catch (NumberFormatException e) {
+        // Ignore (and log) invalid content length values.
+        LOGGER.warn("Invalid content length in header: " + contentLengthStr);
+      }
+    }
+
+    return new ContentSubscriber(state._url, targetLength, truncated, readStartTime);
+  }
+
+  private void handleResponse(FetchState state, HttpResponse<byte[]> response, int readRate) throws BaseFetchException {
+    int httpStatus = response.statusCode();
+
+    try {
+      state._cookies.put(state._uri, response.headers().map());
+    } catch (IOException e) {
+      LOGGER.debug("Ignoring invalid cookies from " + state._uri + ": " + e.getMessage());
+    }
+
+    if (isFollowedRedirect(httpStatus)) {
+      String location = response.headers().firstValue(HttpHeaderNames.LOCATION).orElse(null);
+      if (location != null) {
+        followRedirect(state, httpStatus, location);
+        return;
+      }
+    }
+
+    HttpHeaders headerMap = new HttpHeaders();
+    for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+      for (String value : header.getValue()) {
+        headerMap.add(header.getKey(), value);
+      }
+    }
+
+    if ((httpStatus < 200) || (httpStatus >= 300)) {
+      // We can't just check against SC_OK, as some wackos return 201, 202,
+      // etc
+      throw new HttpFetchException(state._url, "Error fetching " + state._url + " due to http status code " + httpStatus, httpStatus, headerMap);
+    }
+
+    String contentType = headerMap.getFirst(HttpHeaderNames.CONTENT_TYPE);
+    if (contentType == null) {
+      contentType = "";
+    } else if (!_fetcherPolicy.isValidMimeType(contentType)) {
+      throw new AbortedFetchException(state._url, "Invalid mime-type: " + contentType, AbortedFetchReason.INVALID_MIMETYPE);
+    }
+
+    // HttpClient doesn't tell us what it connected to, and looking it up here
+    // could block one of our few threads on DNS, so we only know the address
+    // if the URL has one.
+    String hostAddress = getHostAddress(state._uri.getHost());
+
+    state._future.complete(new FetchedResult(state._url, state._uri.toString(), System.currentTimeMillis(), headerMap, response.body(), contentType,
+        readRate, state._newBaseUrl, state._numRedirects, hostAddress));
+  }
+
+  private void followRedirect(FetchState state, int httpStatus, String location) throws BaseFetchException {
+    // HACK by Julius - some sites return a redirect with a " " space
+    // character rather than a properly encoded %20
+    if (location.contains(" ")) {
+      location = StringUtils.replace(location, " ", "%20");
+    }
+
+    URI target;
+    try {
+      target = state._uri.resolve(location);
+
+      // HACK - avoid circular redirects caused by an explicit default port, same
+      // as SimpleHttpFetcher.MyRedirectHandler.
+      if ("http".equalsIgnoreCase(target.getScheme()) && (target.getPort() == 80)) {
+        target = new URI(target.getScheme(), target.getUserInfo(), target.getHost(), -1, target.getPath(), target.getQuery(), target.getFragment());
+      }
+    } catch (IllegalArgumentException e) {
+      throw new UrlFetchException(state._url, "Invalid redirect location: " + location);
+    } catch (URISyntaxException e) {
+      throw new UrlFetchException(state._url, e.getMessage());
+    }
+
+    // Based on the redirect mode, decide how we want to handle this.
+    RedirectMode redirectMode = _fetcherPolicy.getRedirectMode();
+    boolean isPermRedirect = httpStatus == HttpStatus.SC_MOVED_PERMANENTLY;
+    if ((redirectMode == RedirectMode.FOLLOW_NONE) || ((redirectMode == RedirectMode.FOLLOW_TEMP) && isPermRedirect)) {
+      RedirectExceptionReason reason = isPermRedirect ? RedirectExceptionReason.PERM_REDIRECT_DISALLOWED : RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED;
+      throw new RedirectFetchException(state._url, target.toString(), reason);
+    }
+
+    state._numRedirects += 1;
+    if (state._numRedirects > _fetcherPolicy.getMaxRedirects()) {
+      throw new RedirectFetchException(state._url, target.toString(), RedirectExceptionReason.TOO_MANY_REDIRECTS);
+    }
+
+    // Record the last permanent redirect
+    if (isPermRedirect) {
+      state._newBaseUrl = target.toString();
+    }
+
+    state._uri = target;
+    startHop(state);
+  }
+
+  private boolean isFollowedRedirect(int httpStatus) {
+    // With max redirects of zero, SimpleHttpFetcher turns off redirect handling,
+    // so a 3xx response becomes an HttpFetchException.
+    if (_fetcherPolicy.getMaxRedirects() == 0) {
+      return false;
+    }
+
+    switch (httpStatus) {
+    case HttpStatus.SC_MOVED_PERMANENTLY:
+    case HttpStatus.SC_MOVED_TEMPORARILY:
+    case HttpStatus.SC_SEE_OTHER:
+    case HttpStatus.SC_TEMPORARY_REDIRECT:
+    case 308: // Permanent redirect, from RFC 7538
+      return true;
+
+    default:
+      return false;
+    }
+  }
+
+  private BaseFetchException mapException(String url, Throwable t) {
+    while (((t instanceof CompletionException) || (t instanceof ExecutionException)) && (t.getCause() != null)) {
+      t = t.getCause();
+    }
+
+    if ((t instanceof IOException) && (t.getCause() instanceof BaseFetchException)) {
+      t = t.getCause();
+    }
+
+    if (t instanceof BaseFetchException) {
+      return (BaseFetchException) t;
+    } else if (_aborted) {
+      return new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+    } else if (t instanceof IOException) {
+      return new IOFetchException(url, (IOException) t);
+    } else if (t instanceof IllegalArgumentException) {
+      return new UrlFetchException(url, t.getMessage());
+    } else {
+      // Map anything else to a generic IOFetchException
+      return new IOFetchException(url, new IOException(t));
+    }
+  }
+
+  /**
+   * @return <host> if it's an IP address, otherwise an empty string.
+   */
+  private static String getHostAddress(String host) {
+    if (host == null) {
+      return "";
+    } else if (host.startsWith("[")) {
+      return host.substring(1, host.length() - 1);
+    }
+
+    for (int i = 0; i < host.length(); i++) {
+      char c = host.charAt(i);
+      if (((c < '0') || (c > '9')) && (c != '.')) {
+        return "";
+      }
+    }
+
+    return host;
+  }
+
+  /**
+   * Requests to the host of <state> are multiplexed over one connection, so
+   * the limit is now the number of streams, versus connections. We remember
+   * this, so it still applies if the host's permits are retired.
+   */
+  private void setHttp2Host(FetchState state) {
+    String host = state._uri.getHost();
+    if (!_http2Hosts.contains(host)) {
+      if (_http2Hosts.size() >= MAX_HTTP2_HOSTS) {
+        _http2Hosts.clear();
+      }
+
+      _http2Hosts.add(host);
+    }
+
+    if (state._permits.getMaxPermits() != _fetcherPolicy.getMaxStreamsPerHost()) {
+      state._permits.setMaxPermits(_fetcherPolicy.getMaxStreamsPerHost(), _executor);
+    }
+  }
+
+  private HostPermits getHostPermits(String host) {
+    HostPermits result = _hostPermits.get(host);
+    if (result == null) {
+      int maxPermits = _http2Hosts.contains(host) ? _fetcherPolicy.getMaxStreamsPerHost() : _fetcherPolicy.getMaxConnectionsPerHost();
+      HostPermits newPermits = new HostPermits(host, maxPermits);
+      result = _hostPermits.putIfAbsent(host, newPermits);
+      if (result == null) {
+        result = newPermits;
+      }
+    }
+
+    return result;
+  }
+
+  private synchronized void init() {
+    if (_httpClient == null) {
+      _hostPermits = new ConcurrentHashMap<String, HostPermits>();
+      _http2Hosts = ConcurrentHashMap.newKeySet();
+      _activeFetches = ConcurrentHashMap.newKeySet();
+
+      final AtomicInteger threadCount = new AtomicInteger();
+      _executor = Executors.newFixedThreadPool(_maxThreads, new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread result = new Thread(r, "AsyncHttpFetcher-" + threadCount.incrementAndGet());
+          result.setDaemon(true);
+          return result;
+        }
+      });
+
+      HttpClient.Builder builder = HttpClient.newBuilder();
+      builder.executor(_executor);
+      builder.version(_httpVersion);
+      builder.connectTimeout(Duration.ofMillis(_connectionTimeout));
+      builder.followRedirects(HttpClient.Redirect.NEVER);
+
+      for (String contextName : SimpleHttpFetcher.SSL_CONTEXT_NAMES) {
+        try {
+          SSLContext sslContext = SSLContext.getInstance(contextName);
+          sslContext.init(null, new TrustManager[]{new DummyX509TrustManager(null)}, null);
+          builder.sslContext(sslContext);
+          break;
+        } catch (NoSuchAlgorithmException e) {
+          LOGGER.debug("SSLContext algorithm not available: " + contextName);
+        } catch (Exception e) {
+          LOGGER.debug("SSLContext can't be initialized: " + contextName, e);
+        }
+      }
+
+      _httpClient = builder.build();
+    }
+  }
+
+  @Override
+  public void abort() {
+    _aborted = true;
+
+    if (_activeFetches != null) {
+      for (FetchState state : _activeFetches) {
+        state._future.completeExceptionally(new AbortedFetchException(state._url, AbortedFetchReason.INTERRUPTED));
+
+        // Stop reading from the socket, versus waiting for a timeout.
+        CompletableFuture<HttpResponse<byte[]>> exchange = state._exchange;
+        if (exchange != null) {
+          exchange.cancel(true);
+        }
+      }
+    }
+
+    if (_executor != null) {
+      _executor.shutdownNow();
+    }
+  }
+
+}
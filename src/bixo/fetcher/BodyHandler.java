@@ -0,0 +1,23 @@
+package bixo.fetcher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sink for a response body, which gets the content as it's read from the
+ * connection instead of having it collected into the FetchedResult.
+ */
+public interface BodyHandler {
+
+  /**
+   * Called with each chunk of the body, in order. The buffer is reused for the
+   * next chunk, so the handler must consume (or copy) its contents before
+   * returning.
+   * 
+   * @param chunk
+   *          Buffer positioned at the start of the chunk's data.
+   * @throws IOException
+   *           to abort the fetch.
+   */
+  public void onContent(ByteBuffer chunk) throws IOException;
+}
@@ -0,0 +1,71 @@
+package bixo.fetcher;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size byte buffers, used for reading response bodies so that
+ * each fetch doesn't allocate (and throw away) its own buffers.
+ *
+ * Released buffers go into a lock-free shared queue, which holds at most
+ * maxPooledBytes worth of buffers - anything beyond that is left for the GC.
+ * That's the total for the pool, since buffers aren't kept anywhere else
+ * (e.g. per thread, where they'd be lost when fetch threads time out).
+ */
+public class BufferPool {
+  public static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+  public static final int DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+  private final int _bufferSize;
+  private final int _maxPooledBuffers;
+  private final ConcurrentLinkedQueue<byte[]> _buffers;
+  private final AtomicInteger _numPooled;
+
+  public BufferPool() {
+    this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED_BYTES);
+  }
+
+  public BufferPool(int bufferSize, int maxPooledBytes) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize must be > 0: " + bufferSize);
+    }
+
+    _bufferSize = bufferSize;
+    _maxPooledBuffers = maxPooledBytes / bufferSize;
+    _buffers = new ConcurrentLinkedQueue<byte[]>();
+    _numPooled = new AtomicInteger();
+  }
+
+  public int getBufferSize() {
+    return _bufferSize;
+  }
+
+  /**
+   * @return number of buffers currently in the pool.
+   */
+  public int getNumPooled() {
+    return _numPooled.get();
+  }
+
+  public byte[] acquire() {
+    byte[] result = _buffers.poll();
+    if (result != null) {
+      _numPooled.decrementAndGet();
+      return result;
+    }
+
+    return new byte[_bufferSize];
+  }
+
+  public void release(byte[] buffer) {
+    if ((buffer == null) || (buffer.length != _bufferSize)) {
+      return;
+    }
+
+    if (_numPooled.incrementAndGet() <= _maxPooledBuffers) {
+      _buffers.offer(buffer);
+    } else {
+      _numPooled.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,363 @@
+package bixo.fetcher;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.scheme.HostNameResolver;
+import org.apache.log4j.Logger;
+
+import bixo.utils.UrlNormalizer;
+
+/**
+ * HostNameResolver that caches the results of DNS lookups, including failed
+ * lookups (negative caching), each with their own time to live.
+ *
+ * Concurrent lookups of the same host are coalesced, so a burst of requests to
+ * a new host only results in one DNS request. Hosts can also be resolved in
+ * bulk before fetching starts, using preResolve(), or one at a time in the
+ * background, using resolveAsync(), which means unknown hosts can be skipped
+ * without tying up a fetch thread.
+ *
+ * To use a different resolver (versus the JVM's), override lookup().
+ */
+public class CachingHostResolver implements HostNameResolver {
+  private static Logger LOGGER = Logger.getLogger(CachingHostResolver.class);
+
+  public static final long DEFAULT_POSITIVE_TTL = 5 * 60 * 1000L;
+  public static final long DEFAULT_NEGATIVE_TTL = 60 * 1000L;
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+  public static final int DEFAULT_NUM_RESOLVER_THREADS = 20;
+
+  private class Entry extends FutureTask<InetAddress[]> {
+    private volatile long _expires;
+
+    public Entry(final String hostname) {
+      super(new Callable<InetAddress[]>() {
+
+        @Override
+        public InetAddress[] call() throws UnknownHostException {
+          return lookup(hostname);
+        }
+      });
+
+      // Until the lookup is done, the entry never expires.
+      _expires = Long.MAX_VALUE;
+    }
+
+    @Override
+    protected void done() {
+      boolean resolved = false;
+      try {
+        resolved = !isCancelled() && (get() != null);
+      } catch (Exception e) {
+        // Lookup failed, so we'll cache that.
+      }
+
+      _expires = System.currentTimeMillis() + (resolved ? _positiveTtl : _negativeTtl);
+    }
+
+    public boolean isExpired(long now) {
+      return _expires <= now;
+    }
+
+    public boolean isUnknownHost() {
+      if (!isDone()) {
+        return false;
+      }
+
+      try {
+        get();
+        return false;
+      } catch (Exception e) {
+        return true;
+      }
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> _cache;
+  private final int _maxEntries;
+  private volatile long _positiveTtl;
+  private volatile long _negativeTtl;
+  private int _numResolverThreads;
+  private ThreadPoolExecutor _asyncExecutor;
+
+  public CachingHostResolver() {
+    this(DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_ENTRIES);
+  }
+
+  public CachingHostResolver(long positiveTtl, long negativeTtl, int maxEntries) {
+    _cache = new ConcurrentHashMap<String, Entry>();
+    _positiveTtl = positiveTtl;
+    _negativeTtl = negativeTtl;
+    _maxEntries = maxEntries;
+    _numResolverThreads = DEFAULT_NUM_RESOLVER_THREADS;
+  }
+
+  public long getPositiveTtl() {
+    return _positiveTtl;
+  }
+
+  public void setPositiveTtl(long positiveTtl) {
+    _positiveTtl = positiveTtl;
+  }
+
+  public long getNegativeTtl() {
+    return _negativeTtl;
+  }
+
+  public void setNegativeTtl(long negativeTtl) {
+    _negativeTtl = negativeTtl;
+  }
+
+  public int getNumResolverThreads() {
+    return _numResolverThreads;
+  }
+
+  /**
+   * Set the max number of lookups that preResolve() and resolveAsync() will run
+   * in parallel.
+   *
+   * @param numResolverThreads
+   */
+  public void setNumResolverThreads(int numResolverThreads) {
+    _numResolverThreads = numResolverThreads;
+  }
+
+  @Override
+  public InetAddress resolve(String hostname) throws IOException {
+    return resolveAll(hostname)[0];
+  }
+
+  /**
+   * @param hostname
+   * @return all addresses for <hostname>, from the cache if possible.
+   * @throws UnknownHostException
+   */
+  public InetAddress[] resolveAll(String hostname) throws UnknownHostException {
+    Entry entry = getEntry(hostname, null);
+
+    try {
+      // If the lookup was started by resolveAsync() but is still queued, we
+      // might as well do it ourselves.
+      entry.run();
+      return entry.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UnknownHostException("Interrupted while resolving " + hostname);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UnknownHostException) {
+        throw (UnknownHostException) e.getCause();
+      } else {
+        throw new UnknownHostException(hostname + ": " + e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Return whether a (cached) lookup of <hostname> has failed. This never
+   * does a lookup, so it's safe to call from anywhere.
+   *
+   * @param hostname
+   * @return true if <hostname> is known to be unresolvable.
+   */
+  public boolean isUnknownHost(String hostname) {
+    Entry entry = _cache.get(hostname.toLowerCase());
+    return (entry != null) && !entry.isExpired(System.currentTimeMillis()) && entry.isUnknownHost();
+  }
+
+  /**
+   * Start a lookup of <hostname> in the background, unless there's already a
+   * current entry for it. This never blocks, so use isResolved() to find out
+   * when the lookup is done.
+   *
+   * @param hostname
+   */
+  public void resolveAsync(String hostname) {
+    getEntry(hostname, getAsyncExecutor());
+  }
+
+  /**
+   * @param hostname
+   * @return true if there's a current entry for <hostname> with a completed
+   *         lookup (successful or not), so resolving it won't block.
+   */
+  public boolean isResolved(String hostname) {
+    Entry entry = _cache.get(hostname.toLowerCase());
+    return (entry != null) && entry.isDone() && !entry.isExpired(System.currentTimeMillis());
+  }
+
+  /**
+   * Resolve all of <hostnames> in parallel, and wait for the lookups to
+   * complete, so that subsequent fetches don't wait on DNS.
+   *
+   * @param hostnames
+   * @return hostnames that couldn't be resolved.
+   */
+  public Set<String> preResolve(Collection<String> hostnames) {
+    Set<String> result = new HashSet<String>();
+    if (hostnames.isEmpty()) {
+      return result;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(_numResolverThreads, hostnames.size())), new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "CachingHostResolver");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    try {
+      List<Future<?>> lookups = new ArrayList<Future<?>>(hostnames.size());
+      for (final String hostname : hostnames) {
+        lookups.add(executor.submit(new Runnable() {
+
+          @Override
+          public void run() {
+            try {
+              getEntry(hostname, null).get();
+            } catch (Exception e) {
+              // Failed lookups are cached, so we check for them below.
+            }
+          }
+        }));
+      }
+
+      for (Future<?> lookup : lookups) {
+        lookup.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOGGER.warn("Unexpected exception pre-resolving hosts", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (String hostname : hostnames) {
+      if (isUnknownHost(hostname)) {
+        result.add(hostname);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Resolve the hosts of all of <urls> in parallel.
+   *
+   * @param urls
+   * @return hostnames that couldn't be resolved.
+   */
+  public Set<String> preResolveUrls(Iterable<String> urls) {
+    Set<String> hostnames = new HashSet<String>();
+    for (String url : urls) {
+      // Ignore invalid URLs, the fetch will fail on them.
+      String host = UrlNormalizer.getHost(url);
+      if (host != null) {
+        hostnames.add(host);
+      }
+    }
+
+    return preResolve(hostnames);
+  }
+
+  /**
+   * Do the actual lookup of <hostname>, without any caching.
+   *
+   * @param hostname
+   * @return addresses, in preference order.
+   * @throws UnknownHostException
+   */
+  protected InetAddress[] lookup(String hostname) throws UnknownHostException {
+    return InetAddress.getAllByName(hostname);
+  }
+
+  /**
+   * Return the current entry for <hostname>, replacing it if it's expired. The
+   * lookup for a new entry is run inline, or by <executor> if that's not null.
+   */
+  private Entry getEntry(String hostname, Executor executor) {
+    String key = hostname.toLowerCase();
+    long now = System.currentTimeMillis();
+
+    while (true) {
+      Entry entry = _cache.get(key);
+      if ((entry != null) && !entry.isExpired(now)) {
+        return entry;
+      }
+
+      if ((entry == null) && (_cache.size() >= _maxEntries)) {
+        purgeExpired(now);
+      }
+
+      Entry newEntry = new Entry(key);
+      boolean added = (entry == null) ? (_cache.putIfAbsent(key, newEntry) == null) : _cache.replace(key, entry, newEntry);
+      if (added) {
+        if (executor == null) {
+          newEntry.run();
+        } else {
+          executor.execute(newEntry);
+        }
+
+        return newEntry;
+      }
+    }
+  }
+
+  private synchronized Executor getAsyncExecutor() {
+    if (_asyncExecutor == null) {
+      int numThreads = Math.max(1, _numResolverThreads);
+      _asyncExecutor = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "CachingHostResolver-async");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+      // Don't keep idle threads around between crawls.
+      _asyncExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    return _asyncExecutor;
+  }
+
+  private void purgeExpired(long now) {
+    Iterator<Entry> iter = _cache.values().iterator();
+    while (iter.hasNext()) {
+      if (iter.next().isExpired(now)) {
+        iter.remove();
+      }
+    }
+
+    // If everything is still valid, we have to make room somehow.
+    if (_cache.size() >= _maxEntries) {
+      LOGGER.debug("Host resolver cache is full, clearing it");
+      _cache.clear();
+    }
+  }
+}
@@ -0,0 +1,541 @@
+package bixo.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.log4j.Logger;
+
+import bixo.datum.HttpHeaders;
+import bixo.utils.UrlFingerprint;
+
+/**
+ * Disk-backed cache of fetched results, so that repeated fetches of the same
+ * URLs (e.g. during development, or when re-running a crawl) don't have to go
+ * to the network.
+ *
+ * Results are appended to a series of fixed size segment files in the cache
+ * directory, which are memory-mapped, so a cache hit is read straight from the
+ * page cache. When the cache is full, the oldest segment is evicted using a
+ * segmented version of the CLOCK algorithm - entries in it that have been hit
+ * since they were written get a second chance (they're copied to the newest
+ * segment), and the rest are dropped.
+ *
+ * Results are only cached if the Cache-Control and Expires headers allow it,
+ * and are only returned until they expire. Results without either header use
+ * the default time to live, which is zero (don't cache) unless it's been set.
+ * The index is rebuilt by scanning the segments when the cache is opened, so
+ * the cache survives restarts.
+ */
+public class DiskResponseCache implements Closeable {
+  private static Logger LOGGER = Logger.getLogger(DiskResponseCache.class);
+
+  public static final int DEFAULT_NUM_SEGMENTS = 16;
+
+  private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+  // Record is magic number, payload length, payload CRC, then payload. Space
+  // after the last record in a segment is all zeros.
+  private static final int RECORD_MAGIC = 0xBC0CAC4E;
+  private static final int RECORD_HEADER_SIZE = 4 + 4 + 4;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+
+  private static final String CACHE_CONTROL = "Cache-Control";
+  private static final String EXPIRES = "Expires";
+  private static final String DATE = "Date";
+
+  private static class Segment {
+    private final long _id;
+    private final File _file;
+    private final MappedByteBuffer _buffer;
+    private int _used;
+
+    public Segment(long id, File file, MappedByteBuffer buffer) {
+      _id = id;
+      _file = file;
+      _buffer = buffer;
+      _used = 0;
+    }
+  }
+
+  private static class Entry {
+    private final String _url;
+    private final Segment _segment;
+    private final int _offset;
+    private final int _length;
+    private final long _expires;
+    private boolean _referenced;
+
+    public Entry(String url, Segment segment, int offset, int length, long expires) {
+      _url = url;
+      _segment = segment;
+      _offset = offset;
+      _length = length;
+      _expires = expires;
+      _referenced = false;
+    }
+  }
+
+  /**
+   * Read-only InputStream over a slice of a (mapped) buffer.
+   */
+  private static class BufferInputStream extends InputStream {
+    private final ByteBuffer _buffer;
+
+    public BufferInputStream(ByteBuffer buffer) {
+      _buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return _buffer.hasRemaining() ? (_buffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!_buffer.hasRemaining()) {
+        return -1;
+      }
+
+      len = Math.min(len, _buffer.remaining());
+      _buffer.get(b, off, len);
+      return len;
+    }
+  }
+
+  private final File _dir;
+  private final int _numSegments;
+  private final int _segmentSize;
+  private final Map<Long, Entry> _entries;
+  private final ArrayDeque<Segment> _segments;
+  private long _defaultTtl;
+
+  private final AtomicLong _numHits;
+  private final AtomicLong _numMisses;
+  private final AtomicLong _numEvictions;
+
+  public DiskResponseCache(File dir, long maxSize) throws IOException {
+    this(dir, maxSize, DEFAULT_NUM_SEGMENTS);
+  }
+
+  /**
+   * @param dir
+   *          Directory for the segment files, which is created if needed.
+   * @param maxSize
+   *          Max size of all segment files, in bytes.
+   * @param numSegments
+   *          Number of segments to divide the cache into. Eviction happens one
+   *          segment at a time, and a result larger than one segment can't be
+   *          cached.
+   * @throws IOException
+   */
+  public DiskResponseCache(File dir, long maxSize, int numSegments) throws IOException {
+    if (numSegments < 2) {
+      throw new IllegalArgumentException("numSegments must be >= 2: " + numSegments);
+    }
+
+    _dir = dir;
+    _numSegments = numSegments;
+    _segmentSize = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_SEGMENT_SIZE, maxSize / numSegments));
+    _entries = new HashMap<Long, Entry>();
+    _segments = new ArrayDeque<Segment>();
+    _defaultTtl = 0;
+
+    _numHits = new AtomicLong();
+    _numMisses = new AtomicLong();
+    _numEvictions = new AtomicLong();
+
+    if (!_dir.isDirectory() && !_dir.mkdirs()) {
+      throw new IOException("Can't create cache directory " + _dir);
+    }
+
+    open();
+  }
+
+  public long getDefaultTtl() {
+    return _defaultTtl;
+  }
+
+  /**
+   * Set how long to cache results that don't have a Cache-Control max-age or
+   * an Expires header. By default these aren't cached.
+   *
+   * @param defaultTtl
+   *          time to live, in milliseconds
+   */
+  public void setDefaultTtl(long defaultTtl) {
+    _defaultTtl = defaultTtl;
+  }
+
+  public long getHitCount() {
+    return _numHits.get();
+  }
+
+  public long getMissCount() {
+    return _numMisses.get();
+  }
+
+  public long getEvictionCount() {
+    return _numEvictions.get();
+  }
+
+  /**
+   * @return number of results in the cache, including any that have expired but
+   *         haven't been evicted yet.
+   */
+  public synchronized int size() {
+    return _entries.size();
+  }
+
+  /**
+   * @param url
+   * @return cached result for <url>, or null if there isn't one, or it's expired.
+   */
+  public FetchedResult get(String url) {
+    Long key = UrlFingerprint.fingerprint(url);
+    ByteBuffer record = null;
+
+    synchronized (this) {
+      Entry entry = _entries.get(key);
+      if ((entry != null) && entry._url.equals(url)) {
+        if (entry._expires > System.currentTimeMillis()) {
+          entry._referenced = true;
+          record = slice(entry._segment, entry._offset, entry._length);
+        } else {
+          _entries.remove(key);
+        }
+      }
+    }
+
+    if (record != null) {
+      try {
+        FetchedResult result = readResult(record);
+        _numHits.incrementAndGet();
+        return result;
+      } catch (IOException e) {
+        LOGGER.warn("Can't read cached result for " + url, e);
+      }
+    }
+
+    _numMisses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Add <result> to the cache, if its headers say it can be cached.
+   *
+   * @param result
+   * @return true if the result was cached.
+   */
+  public boolean put(FetchedResult result) {
+    long expires = calcExpires(result.getHeaders(), System.currentTimeMillis());
+    if (expires <= System.currentTimeMillis()) {
+      return false;
+    }
+
+    byte[] payload;
+    try {
+      payload = writeResult(result, expires);
+    } catch (IOException e) {
+      // Something like a URL that's too long for writeUTF().
+      LOGGER.debug("Can't serialize result for " + result.getBaseUrl(), e);
+      return false;
+    }
+
+    int recordLength = RECORD_HEADER_SIZE + payload.length;
+    if (recordLength > _segmentSize) {
+      return false;
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+
+    synchronized (this) {
+      try {
+        Segment segment = getSegmentFor(recordLength);
+        int offset = segment._used;
+        ByteBuffer out = slice(segment, offset, recordLength);
+        out.putInt(RECORD_MAGIC);
+        out.putInt(payload.length);
+        out.putInt((int) crc.getValue());
+        out.put(payload);
+        segment._used += recordLength;
+
+        String url = result.getBaseUrl();
+        _entries.put(UrlFingerprint.fingerprint(url), new Entry(url, segment, offset, recordLength, expires));
+        return true;
+      } catch (IOException e) {
+        LOGGER.warn("Can't add result to cache for " + result.getBaseUrl(), e);
+        return false;
+      }
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    for (Segment segment : _segments) {
+      segment._buffer.force();
+    }
+  }
+
+  /**
+   * Figure out when <headers> say the response expires, using the
+   * Cache-Control max-age, or the Expires header (relative to the Date
+   * header, in case our clock is different from the server's).
+   *
+   * @param headers
+   * @param now
+   * @return expiration time, or <= now if it can't be cached.
+   */
+  protected long calcExpires(HttpHeaders headers, long now) {
+    String cacheControl = headers.getFirst(CACHE_CONTROL);
+    if (cacheControl != null) {
+      for (String directive : cacheControl.toLowerCase().split(",")) {
+        directive = directive.trim();
+        if (directive.equals("no-store") || directive.equals("no-cache")) {
+          return now;
+        } else if (directive.startsWith("max-age=")) {
+          try {
+            return now + (Long.parseLong(directive.substring("max-age=".length()).trim()) * 1000L);
+          } catch (NumberFormatException e) {
+            return now;
+          }
+        }
+      }
+    }
+
+    String expires = headers.getFirst(EXPIRES);
+    if (expires != null) {
+      try {
+        long expiresTime = DateUtils.parseDate(expires).getTime();
+        String date = headers.getFirst(DATE);
+        long dateTime = (date == null) ? now : DateUtils.parseDate(date).getTime();
+        return now + (expiresTime - dateTime);
+      } catch (DateParseException e) {
+        // Invalid dates mean it's already expired.
+        return now;
+      }
+    }
+
+    return now + _defaultTtl;
+  }
+
+  /**
+   * Return a segment with at least <length> bytes free. If the newest segment
+   * doesn't have room, then we start a new one, and evict the oldest one if we
+   * now have too many.
+   */
+  private Segment getSegmentFor(int length) throws IOException {
+    Segment segment = _segments.peekLast();
+    if ((segment != null) && (segment._used + length <= _segmentSize)) {
+      return segment;
+    }
+
+    long id = (segment == null) ? 1 : segment._id + 1;
+    segment = openSegment(id);
+    _segments.addLast(segment);
+
+    if (_segments.size() > _numSegments) {
+      evict(_segments.removeFirst(), segment);
+    }
+
+    return segment;
+  }
+
+  /**
+   * Drop the entries in <oldest>, except for ones that have been used since
+   * they were written and are still valid, which get copied to <newest> if
+   * there's room.
+   */
+  private void evict(Segment oldest, Segment newest) {
+    long now = System.currentTimeMillis();
+
+    Iterator<Map.Entry<Long, Entry>> iter = _entries.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<Long, Entry> mapEntry = iter.next();
+      Entry entry = mapEntry.getValue();
+      if (entry._segment != oldest) {
+        continue;
+      }
+
+      if (entry._referenced && (entry._expires > now) && (newest._used + entry._length <= _segmentSize)) {
+        int offset = newest._used;
+        slice(newest, offset, entry._length).put(slice(oldest, entry._offset, entry._length));
+        newest._used += entry._length;
+        mapEntry.setValue(new Entry(entry._url, newest, offset, entry._length, entry._expires));
+      } else {
+        iter.remove();
+        _numEvictions.incrementAndGet();
+      }
+    }
+
+    if (!oldest._file.delete()) {
+      LOGGER.warn("Can't delete evicted cache segment " + oldest._file);
+    }
+  }
+
+  /**
+   * Rebuild the index by scanning all of the segments, oldest first, so newer
+   * entries replace older ones.
+   */
+  private void open() throws IOException {
+    File[] files = _dir.listFiles(new FilenameFilter() {
+
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+
+    Arrays.sort(files);
+    long now = System.currentTimeMillis();
+
+    for (File file : files) {
+      long id;
+      try {
+        id = Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+
+      Segment segment = openSegment(id);
+      _segments.addLast(segment);
+
+      while (segment._used + RECORD_HEADER_SIZE <= _segmentSize) {
+        int offset = segment._used;
+        ByteBuffer header = slice(segment, offset, RECORD_HEADER_SIZE);
+        int magic = header.getInt();
+        int payloadLength = header.getInt();
+        int payloadCrc = header.getInt();
+        if ((magic != RECORD_MAGIC) || (payloadLength <= 0) || (offset + RECORD_HEADER_SIZE + payloadLength > _segmentSize)) {
+          break;
+        }
+
+        int length = RECORD_HEADER_SIZE + payloadLength;
+        ByteBuffer payload = slice(segment, offset + RECORD_HEADER_SIZE, payloadLength);
+        if (!checkCrc(payload, payloadCrc)) {
+          LOGGER.warn(String.format("Discarding corrupt record at %d in %s", offset, file));
+          break;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferInputStream(payload));
+        long expires = in.readLong();
+        String url = in.readUTF();
+        if (expires > now) {
+          _entries.put(UrlFingerprint.fingerprint(url), new Entry(url, segment, offset, length, expires));
+        }
+
+        segment._used += length;
+      }
+    }
+
+    while (_segments.size() > _numSegments) {
+      evict(_segments.removeFirst(), _segments.peekLast());
+    }
+  }
+
+  private Segment openSegment(long id) throws IOException {
+    File file = new File(_dir, String.format("%s%012d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+    try {
+      // Mapping extends the file to the segment size, but unwritten space
+      // doesn't use any disk.
+      return new Segment(id, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _segmentSize));
+    } finally {
+      // The mapping stays valid after the file is closed.
+      raf.close();
+    }
+  }
+
+  private static ByteBuffer slice(Segment segment, int offset, int length) {
+    ByteBuffer result = segment._buffer.duplicate();
+    result.position(offset);
+    result.limit(offset + length);
+    return result.slice();
+  }
+
+  private static boolean checkCrc(ByteBuffer payload, int expected) {
+    byte[] buffer = new byte[Math.min(payload.remaining(), 64 * 1024)];
+    ByteBuffer data = payload.duplicate();
+    CRC32 crc = new CRC32();
+
+    while (data.hasRemaining()) {
+      int len = Math.min(buffer.length, data.remaining());
+      data.get(buffer, 0, len);
+      crc.update(buffer, 0, len);
+    }
+
+    return (int) crc.getValue() == expected;
+  }
+
+  private static byte[] writeResult(FetchedResult result, long expires) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(result.getContent().length + 1024);
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    // Expiration and URL have to come first, as they're what we need when
+    // scanning segments.
+    out.writeLong(expires);
+    out.writeUTF(result.getBaseUrl());
+    out.writeUTF(result.getFetchedUrl());
+    out.writeLong(result.getFetchTime());
+    out.writeUTF(result.getContentType());
+    out.writeInt(result.getResponseRate());
+    out.writeBoolean(result.getNewBaseUrl() != null);
+    if (result.getNewBaseUrl() != null) {
+      out.writeUTF(result.getNewBaseUrl());
+    }
+
+    out.writeInt(result.getNumRedirects());
+    out.writeUTF(result.getHostAddress());
+    out.writeInt(result.getWireLength());
+    result.getHeaders().write(out);
+    out.writeInt(result.getContent().length);
+    out.write(result.getContent());
+    out.close();
+
+    return bytes.toByteArray();
+  }
+
+  private static FetchedResult readResult(ByteBuffer record) throws IOException {
+    record.position(RECORD_HEADER_SIZE);
+    DataInputStream in = new DataInputStream(new BufferInputStream(record));
+
+    in.readLong();
+    String baseUrl = in.readUTF();
+    String fetchedUrl = in.readUTF();
+    long fetchTime = in.readLong();
+    String contentType = in.readUTF();
+    int responseRate = in.readInt();
+    String newBaseUrl = in.readBoolean() ? in.readUTF() : null;
+    int numRedirects = in.readInt();
+    String hostAddress = in.readUTF();
+    int wireLength = in.readInt();
+    HttpHeaders headers = new HttpHeaders();
+    headers.readFields(in);
+    byte[] content = new byte[in.readInt()];
+    in.readFully(content);
+
+    return new FetchedResult(baseUrl, fetchedUrl, fetchTime, headers, content, content.length, wireLength, contentType, responseRate, newBaseUrl,
+        numRedirects, hostAddress);
+  }
+}
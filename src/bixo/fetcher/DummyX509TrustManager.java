@@ -1,16 +1,22 @@
 package bixo.fetcher;
 
+import java.net.Socket;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
 import javax.net.ssl.X509TrustManager;
 
-public class DummyX509TrustManager implements X509TrustManager {
+// Extends X509ExtendedTrustManager (versus just implementing X509TrustManager) so that
+// JSSE doesn't wrap us with its own endpoint (hostname) identification check, which
+// the JDK HttpClient used by AsyncHttpFetcher always turns on.
+public class DummyX509TrustManager extends X509ExtendedTrustManager {
     private X509TrustManager standardTrustManager = null;
 
     /**
@@ -58,4 +64,20 @@ public class DummyX509TrustManager implements X509TrustManager {
         // do nothing
 
     }
+
+    public void checkClientTrusted(X509Certificate[] arg0, String arg1, Socket arg2) throws CertificateException {
+        // do nothing
+    }
+
+    public void checkServerTrusted(X509Certificate[] arg0, String arg1, Socket arg2) throws CertificateException {
+        // do nothing
+    }
+
+    public void checkClientTrusted(X509Certificate[] arg0, String arg1, SSLEngine arg2) throws CertificateException {
+        // do nothing
+    }
+
+    public void checkServerTrusted(X509Certificate[] arg0, String arg1, SSLEngine arg2) throws CertificateException {
+        // do nothing
+    }
 }
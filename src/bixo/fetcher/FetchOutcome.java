@@ -0,0 +1,124 @@
+package bixo.fetcher;
+
+import java.security.InvalidParameterException;
+
+import bixo.datum.UrlStatus;
+import bixo.exceptions.BaseFetchException;
+
+/**
+ * Result of fetching one URL as part of a batch - either the FetchedResult, the
+ * BaseFetchException that the fetch threw, or the reason why the URL was
+ * skipped without being fetched.
+ */
+public class FetchOutcome {
+  private final String _url;
+  private final FetchedResult _result;
+  private final BaseFetchException _exception;
+  private final UrlStatus _skipStatus;
+  private final int _numRetries;
+  private final long _elapsedTime;
+
+  public FetchOutcome(String url, FetchedResult result) {
+    this(url, result, null, null);
+
+    if (result == null) {
+      throw new InvalidParameterException("result cannot be null");
+    }
+  }
+
+  public FetchOutcome(String url, BaseFetchException exception) {
+    this(url, null, exception, null);
+
+    if (exception == null) {
+      throw new InvalidParameterException("exception cannot be null");
+    }
+  }
+
+  public FetchOutcome(String url, UrlStatus skipStatus) {
+    this(url, null, null, skipStatus);
+
+    if (skipStatus == null) {
+      throw new InvalidParameterException("skipStatus cannot be null");
+    }
+  }
+
+  /**
+   * Copy of <outcome>, with the number of times the fetch was retried, and
+   * the total time from the first attempt to this outcome.
+   * 
+   * @param outcome
+   * @param numRetries
+   * @param elapsedTime
+   */
+  public FetchOutcome(FetchOutcome outcome, int numRetries, long elapsedTime) {
+    this(outcome._url, outcome._result, outcome._exception, outcome._skipStatus, numRetries, elapsedTime);
+  }
+
+  private FetchOutcome(String url, FetchedResult result, BaseFetchException exception, UrlStatus skipStatus) {
+    this(url, result, exception, skipStatus, 0, 0);
+  }
+
+  private FetchOutcome(String url, FetchedResult result, BaseFetchException exception, UrlStatus skipStatus, int numRetries, long elapsedTime) {
+    if (url == null) {
+      throw new InvalidParameterException("url cannot be null");
+    }
+
+    _url = url;
+    _result = result;
+    _exception = exception;
+    _skipStatus = skipStatus;
+    _numRetries = numRetries;
+    _elapsedTime = elapsedTime;
+  }
+
+  public String getUrl() {
+    return _url;
+  }
+
+  public boolean isSuccess() {
+    return _result != null;
+  }
+
+  public FetchedResult getResult() {
+    return _result;
+  }
+
+  public BaseFetchException getException() {
+    return _exception;
+  }
+
+  /**
+   * @return number of times the fetch was retried (not including the first
+   *         attempt).
+   */
+  public int getNumRetries() {
+    return _numRetries;
+  }
+
+  /**
+   * @return time in milliseconds from the first attempt to this outcome,
+   *         including any time spent waiting to retry, or 0 if unknown.
+   */
+  public long getElapsedTime() {
+    return _elapsedTime;
+  }
+
+  public UrlStatus getStatus() {
+    if (_result != null) {
+      return _result.isNotModified() ? UrlStatus.UNMODIFIED : UrlStatus.FETCHED;
+    } else if (_exception != null) {
+      return _exception.mapToUrlStatus();
+    } else {
+      return _skipStatus;
+    }
+  }
+
+  @Override
+  public String toString() {
+    if (_numRetries > 0) {
+      return _url + ": " + getStatus() + " (" + _numRetries + " retries)";
+    } else {
+      return _url + ": " + getStatus();
+    }
+  }
+}
@@ -0,0 +1,637 @@
+package bixo.fetcher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.FetcherMode;
+import bixo.datum.UrlStatus;
+import bixo.exceptions.BaseFetchException;
+import bixo.robots.RobotRules;
+import bixo.robots.RobotRulesCache;
+import bixo.utils.SeenUrlFilter;
+import bixo.utils.UrlNormalizer;
+
+/**
+ * Groups URLs into per-host queues, and dispatches them to a SimpleHttpFetcher
+ * in batches shaped by FetcherPolicy.getFetchRequest(). A host's next batch
+ * isn't started before the FetchRequest's next request time, so each host sees
+ * at most the request rate that its crawl delay allows.
+ *
+ * Hosts waiting for their next batch are kept in a heap ordered by next request
+ * time, so the dispatcher only ever looks at the head of the heap, no matter
+ * how many hosts are active.
+ *
+ * The FetcherMode controls what happens to URLs that can't be fetched in time:
+ * IMPOLITE ignores the crawl delay (and allows up to max connections per host
+ * batches at once), EFFICIENT skips a host's remaining URLs once its next batch
+ * would start after the crawl end time, and COMPLETE keeps them queued until
+ * the crawl end time is reached.
+ *
+ * With a HostRateController, each host's crawl delay and (for IMPOLITE) number
+ * of concurrent batches adapt to how the host is responding, and a host that
+ * asks us to back off (429/503 with Retry-After) has its remaining URLs held
+ * until then.
+ *
+ * With a RetryQueue, failed fetches that are worth retrying are put back in
+ * their host's queue after a backoff delay, rather than being reported, and
+ * the fetching thread moves on. The final outcome for each URL includes the
+ * number of retries, and the total time taken.
+ *
+ * With a RobotRulesCache, URLs blocked by robots.txt are skipped (as
+ * SKIPPED_BLOCKED), URLs for sites whose robots.txt we couldn't get are
+ * skipped as SKIPPED_DEFERRED, and a site's Crawl-delay is used if it's longer
+ * than our own. Until a site's rules are known, its batches are one URL long.
+ */
+public class FetchScheduler {
+  private static Logger LOGGER = Logger.getLogger(FetchScheduler.class);
+
+  // How often we check whether a host's DNS lookup is done.
+  private static final long RESOLVE_CHECK_INTERVAL = 100;
+
+  /**
+   * Receives the outcome of every URL added to the scheduler. Calls are made
+   * from the dispatching and fetching threads, so implementations must be
+   * thread-safe.
+   */
+  public interface OutcomeListener {
+    public void onOutcome(FetchOutcome outcome);
+  }
+
+  private static class HostQueue implements Comparable<HostQueue> {
+    private final String _host;
+    private final ArrayDeque<String> _urls;
+    private long _nextFetchTime;
+    private int _numActive;
+    private int _numAccepted;
+    private boolean _scheduled;
+
+    public HostQueue(String host) {
+      _host = host;
+      _urls = new ArrayDeque<String>();
+      _nextFetchTime = 0;
+      _numActive = 0;
+      _numAccepted = 0;
+      _scheduled = false;
+    }
+
+    @Override
+    public int compareTo(HostQueue o) {
+      if (_nextFetchTime < o._nextFetchTime) {
+        return -1;
+      } else if (_nextFetchTime > o._nextFetchTime) {
+        return 1;
+      } else {
+        return 0;
+      }
+    }
+  }
+
+  private class FetchBatch implements Runnable {
+    private final HostQueue _hostQueue;
+    private final List<String> _urls;
+
+    public FetchBatch(HostQueue hostQueue, List<String> urls) {
+      _hostQueue = hostQueue;
+      _urls = urls;
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (int i = 0; i < _urls.size(); i++) {
+          String url = _urls.get(i);
+          RetryQueue.Retry retry = takeRetry(url);
+
+          UrlStatus skipStatus = null;
+          RobotRulesCache robotsCache = _robotsCache;
+          if (_policy.isTerminateFetch()) {
+            skipStatus = UrlStatus.SKIPPED_TIME_LIMIT;
+          } else if (_fetcher.isUnknownHost(_hostQueue._host)) {
+            skipStatus = UrlStatus.SKIPPED_UNKNOWN_HOST;
+          } else if (robotsCache != null) {
+            RobotRules rules = robotsCache.getRules(url);
+            if (rules.isDeferred()) {
+              skipStatus = UrlStatus.SKIPPED_DEFERRED;
+            } else if (!rules.isAllowed(url)) {
+              skipStatus = UrlStatus.SKIPPED_BLOCKED;
+            }
+          }
+
+          if (skipStatus != null) {
+            removePending(url);
+            _listener.onOutcome(makeSkipOutcome(url, skipStatus, retry));
+            continue;
+          }
+
+          markSeen(url);
+
+          RetryQueue retryQueue = _retryQueue;
+          if (retryQueue != null) {
+            retryQueue.recordAttempt(_hostQueue._host);
+          }
+
+          FetchOutcome outcome;
+          long startTime = System.currentTimeMillis();
+          try {
+            outcome = new FetchOutcome(url, _fetcher.get(url));
+          } catch (BaseFetchException e) {
+            outcome = new FetchOutcome(url, e);
+          }
+
+          long now = System.currentTimeMillis();
+          HostRateController rateController = _rateController;
+          if (rateController != null) {
+            if (outcome.isSuccess()) {
+              rateController.onSuccess(_hostQueue._host, now - startTime);
+            } else {
+              rateController.onFailure(_hostQueue._host, outcome.getException(), now - startTime);
+            }
+          }
+
+          long firstAttemptTime = (retry == null) ? startTime : retry.getFirstAttemptTime();
+          if (!outcome.isSuccess() && (retryQueue != null) && !_policy.isTerminateFetch()
+              && retryQueue.offer(url, _hostQueue._host, outcome, retry, firstAttemptTime)) {
+            // The dispatcher needs to know when the retry will be due.
+            synchronized (FetchScheduler.this) {
+              FetchScheduler.this.notifyAll();
+            }
+          } else {
+            int numRetries = (retry == null) ? 0 : retry.getNumRetries();
+            _listener.onOutcome(new FetchOutcome(outcome, numRetries, now - firstAttemptTime));
+          }
+
+          // If the host told us to back off, put the rest of the batch back
+          // in the queue, to be fetched once we're allowed to.
+          if ((rateController != null) && (rateController.getRetryAfterTime(_hostQueue._host) > now)) {
+            requeue(_hostQueue, _urls.subList(i + 1, _urls.size()));
+            break;
+          }
+        }
+      } catch (RuntimeException e) {
+        LOGGER.error("Unexpected exception fetching batch for " + _hostQueue._host, e);
+      } finally {
+        finishBatch(_hostQueue);
+      }
+    }
+  }
+
+  private final SimpleHttpFetcher _fetcher;
+  private final FetcherPolicy _policy;
+  private final OutcomeListener _listener;
+
+  private final Map<String, HostQueue> _hostQueues;
+  private final PriorityQueue<HostQueue> _readyHosts;
+  private int _numActiveBatches;
+  private volatile HostRateController _rateController;
+  private volatile RetryQueue _retryQueue;
+  private volatile RobotRulesCache _robotsCache;
+  private volatile SeenUrlFilter _seenUrls;
+
+  // URLs that have been queued, but not fetched (or skipped) yet, so they
+  // aren't in the seen URL filter. Only used with a seen URL filter.
+  private final Set<String> _pendingUrls;
+
+  // Retries that have been put back in their host's queue, by URL.
+  private final Map<String, RetryQueue.Retry> _retries;
+
+  public FetchScheduler(SimpleHttpFetcher fetcher, OutcomeListener listener) {
+    _fetcher = fetcher;
+    _policy = fetcher.getFetcherPolicy();
+    _listener = listener;
+
+    _hostQueues = new HashMap<String, HostQueue>();
+    _readyHosts = new PriorityQueue<HostQueue>();
+    _numActiveBatches = 0;
+    _retries = new HashMap<String, RetryQueue.Retry>();
+    _pendingUrls = new HashSet<String>();
+  }
+
+  public HostRateController getRateController() {
+    return _rateController;
+  }
+
+  /**
+   * Adapt each host's crawl delay and concurrency using <rateController>.
+   * Controllers can be shared between schedulers, so what's learned about a
+   * host carries over.
+   *
+   * @param rateController
+   */
+  public void setRateController(HostRateController rateController) {
+    _rateController = rateController;
+  }
+
+  public RetryQueue getRetryQueue() {
+    return _retryQueue;
+  }
+
+  /**
+   * Retry failed fetches using <retryQueue>, with a backoff delay. This is on
+   * top of any immediate retries the fetcher does itself (e.g. when a kept-alive
+   * connection has been dropped), so you may want to reduce the fetcher's max
+   * retry count.
+   *
+   * @param retryQueue
+   */
+  public void setRetryQueue(RetryQueue retryQueue) {
+    _retryQueue = retryQueue;
+  }
+
+  public RobotRulesCache getRobotRulesCache() {
+    return _robotsCache;
+  }
+
+  /**
+   * Check each URL against its site's robots.txt rules, from <robotsCache>,
+   * before fetching it.
+   *
+   * @param robotsCache
+   */
+  public void setRobotRulesCache(RobotRulesCache robotsCache) {
+    _robotsCache = robotsCache;
+  }
+
+  public SeenUrlFilter getSeenUrlFilter() {
+    return _seenUrls;
+  }
+
+  /**
+   * Skip URLs that are already in <seenUrls> (as SKIPPED_FILTERED), or are
+   * already queued. URLs are only added to <seenUrls> once we go to fetch
+   * them, so URLs that are skipped (e.g. over the per-server limit, or
+   * because their site's robots.txt couldn't be fetched) can be added again
+   * later.
+   *
+   * @param seenUrls
+   */
+  public void setSeenUrlFilter(SeenUrlFilter seenUrls) {
+    _seenUrls = seenUrls;
+  }
+
+  /**
+   * Queue up <url> for fetching. This can be called before or during run().
+   *
+   * @param url
+   */
+  public void add(String url) {
+    String host = UrlNormalizer.getHost(url);
+    if (host == null) {
+      _listener.onOutcome(new FetchOutcome(url, UrlStatus.SKIPPED_INVALID_URL));
+      return;
+    }
+
+    SeenUrlFilter seenUrls = _seenUrls;
+    UrlStatus skipStatus = null;
+    boolean newHost = false;
+    synchronized (this) {
+      // Check the pending URLs first, since a URL that's being fetched is
+      // added to the filter before it's removed from them.
+      if ((seenUrls != null) && (_pendingUrls.contains(url) || seenUrls.mightContain(url))) {
+        skipStatus = UrlStatus.SKIPPED_FILTERED;
+      } else {
+        HostQueue hostQueue = _hostQueues.get(host);
+        if (hostQueue == null) {
+          hostQueue = new HostQueue(host);
+          _hostQueues.put(host, hostQueue);
+          newHost = true;
+        }
+
+        if (hostQueue._numAccepted < _policy.getMaxUrlsPerServer()) {
+          hostQueue._numAccepted += 1;
+          hostQueue._urls.add(url);
+          if (seenUrls != null) {
+            _pendingUrls.add(url);
+          }
+
+          scheduleHost(hostQueue);
+        } else {
+          skipStatus = UrlStatus.SKIPPED_PER_SERVER_LIMIT;
+        }
+      }
+    }
+
+    if (newHost) {
+      // Get the lookup going now, so it's (hopefully) done by the time the
+      // host's first batch is due.
+      _fetcher.resolveAsync(host);
+    }
+
+    if (skipStatus != null) {
+      _listener.onOutcome(new FetchOutcome(url, skipStatus));
+    }
+  }
+
+  /**
+   * Fetch everything that's been added, returning once there's nothing left
+   * to fetch. If the fetcher policy's crawl end time is reached, all queued
+   * URLs are skipped. Each host is resolved in the background when it's
+   * first added, and its batches are held until that's done, so one slow DNS
+   * lookup never holds up other hosts. URLs for hosts that can't be resolved
+   * are skipped.
+   *
+   * @throws InterruptedException
+   */
+  public void run() throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(_fetcher.getMaxThreads(), new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread result = new Thread(r, "FetchScheduler");
+        result.setDaemon(true);
+        return result;
+      }
+    });
+
+    try {
+      while (true) {
+        List<FetchOutcome> skipped = new ArrayList<FetchOutcome>();
+        FetchBatch batch = null;
+
+        synchronized (this) {
+          long now = System.currentTimeMillis();
+          queueDueRetries();
+          HostQueue hostQueue = _readyHosts.peek();
+
+          if (_policy.isTerminateFetch()) {
+            while ((hostQueue = _readyHosts.poll()) != null) {
+              hostQueue._scheduled = false;
+              skipAll(hostQueue, UrlStatus.SKIPPED_TIME_LIMIT, skipped);
+            }
+
+            RetryQueue retryQueue = _retryQueue;
+            if (retryQueue != null) {
+              for (RetryQueue.Retry retry : retryQueue.drain()) {
+                skipped.add(makeSkipOutcome(retry.getUrl(), UrlStatus.SKIPPED_TIME_LIMIT, retry));
+              }
+            }
+
+            if (skipped.isEmpty()) {
+              if (_numActiveBatches == 0) {
+                break;
+              }
+
+              waitForWork(Long.MAX_VALUE);
+            }
+          } else if (hostQueue == null) {
+            if ((_numActiveBatches == 0) && !hasPendingRetries()) {
+              break;
+            }
+
+            waitForWork(getTimeUntilCrawlEnd(now));
+          } else if (hostQueue._nextFetchTime > now) {
+            waitForWork(Math.min(hostQueue._nextFetchTime - now, getTimeUntilCrawlEnd(now)));
+          } else if (_numActiveBatches >= _fetcher.getMaxThreads()) {
+            waitForWork(Long.MAX_VALUE);
+          } else if (_fetcher.isUnknownHost(hostQueue._host)) {
+            _readyHosts.poll();
+            hostQueue._scheduled = false;
+            skipAll(hostQueue, UrlStatus.SKIPPED_UNKNOWN_HOST, skipped);
+          } else if (!_fetcher.isResolved(hostQueue._host)) {
+            // Still waiting on DNS (or the cached lookup has expired), so
+            // check back shortly, versus tying up a fetch thread.
+            _fetcher.resolveAsync(hostQueue._host);
+            _readyHosts.poll();
+            hostQueue._nextFetchTime = now + RESOLVE_CHECK_INTERVAL;
+            _readyHosts.add(hostQueue);
+          } else {
+            _readyHosts.poll();
+            hostQueue._scheduled = false;
+            batch = makeBatch(hostQueue, now);
+
+            if ((_policy.getFetcherMode() == FetcherMode.EFFICIENT) && (hostQueue._nextFetchTime >= _policy.getCrawlEndTime())) {
+              // We'd never get to these before the end of the crawl, so
+              // don't make them wait around.
+              skipAll(hostQueue, UrlStatus.SKIPPED_INEFFICIENT, skipped);
+            } else {
+              scheduleHost(hostQueue);
+            }
+          }
+        }
+
+        for (FetchOutcome outcome : skipped) {
+          _listener.onOutcome(outcome);
+        }
+
+        if (batch != null) {
+          executor.execute(batch);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private FetchBatch makeBatch(HostQueue hostQueue, long now) {
+    RobotRulesCache robotsCache = _robotsCache;
+    RobotRules rules = (robotsCache == null) ? null : robotsCache.getCachedRules(hostQueue._urls.peek());
+    boolean hasRobotsDelay = (rules != null) && (rules.getCrawlDelay() != RobotRules.NO_CRAWL_DELAY);
+
+    long crawlDelay = 0;
+    if (_policy.getFetcherMode() != FetcherMode.IMPOLITE) {
+      crawlDelay = hasRobotsDelay ? _policy.getCrawlDelay(rules) : _policy.getCrawlDelay();
+    }
+
+    HostRateController rateController = _rateController;
+    if (rateController != null) {
+      long adjustedDelay = rateController.getCrawlDelay(hostQueue._host, crawlDelay);
+
+      // We can slow down, but not speed up past what the site asked for.
+      crawlDelay = hasRobotsDelay ? Math.max(adjustedDelay, crawlDelay) : adjustedDelay;
+    }
+
+    FetchRequest request = _policy.getFetchRequest(now, crawlDelay, hostQueue._urls.size());
+
+    // Always make progress, even if the policy says we can't fit in any URLs.
+    // If we don't have the site's robots.txt yet, just do one URL, since we
+    // don't know what crawl delay it wants.
+    int numUrls = Math.max(1, request.getNumUrls());
+    if ((robotsCache != null) && (rules == null)) {
+      numUrls = 1;
+    }
+    List<String> urls = new ArrayList<String>(numUrls);
+    while ((urls.size() < numUrls) && !hostQueue._urls.isEmpty()) {
+      urls.add(hostQueue._urls.poll());
+    }
+
+    hostQueue._nextFetchTime = request.getNextRequestTime();
+    if (rateController != null) {
+      hostQueue._nextFetchTime = Math.max(hostQueue._nextFetchTime, rateController.getRetryAfterTime(hostQueue._host));
+    }
+
+    hostQueue._numActive += 1;
+    _numActiveBatches += 1;
+
+    if (LOGGER.isTraceEnabled()) {
+      LOGGER.trace(String.format("Fetching %d URLs from %s, next fetch at %d", urls.size(), hostQueue._host, hostQueue._nextFetchTime));
+    }
+
+    return new FetchBatch(hostQueue, urls);
+  }
+
+  private synchronized void finishBatch(HostQueue hostQueue) {
+    hostQueue._numActive -= 1;
+    _numActiveBatches -= 1;
+
+    HostRateController rateController = _rateController;
+    if (rateController != null) {
+      long retryAfterTime = rateController.getRetryAfterTime(hostQueue._host);
+      if (retryAfterTime > hostQueue._nextFetchTime) {
+        // Changing the next fetch time would break the heap, if the host is
+        // already in it.
+        if (hostQueue._scheduled) {
+          _readyHosts.remove(hostQueue);
+        }
+
+        hostQueue._nextFetchTime = retryAfterTime;
+
+        if (hostQueue._scheduled) {
+          _readyHosts.add(hostQueue);
+        }
+      }
+    }
+
+    scheduleHost(hostQueue);
+    notifyAll();
+  }
+
+  /**
+   * Put <urls> back at the front of the host's queue, in the same order.
+   *
+   * @param hostQueue
+   * @param urls
+   */
+  private synchronized void requeue(HostQueue hostQueue, List<String> urls) {
+    for (int i = urls.size() - 1; i >= 0; i--) {
+      hostQueue._urls.addFirst(urls.get(i));
+    }
+  }
+
+  /**
+   * Put the host into the ready heap, if it has URLs and isn't already
+   * running as many batches as it's allowed.
+   *
+   * @param hostQueue
+   */
+  private void scheduleHost(HostQueue hostQueue) {
+    if (!hostQueue._scheduled && !hostQueue._urls.isEmpty() && (hostQueue._numActive < getMaxActiveBatches(hostQueue._host))) {
+      hostQueue._scheduled = true;
+      _readyHosts.add(hostQueue);
+      notifyAll();
+    }
+  }
+
+  private int getMaxActiveBatches(String host) {
+    if (_policy.getFetcherMode() == FetcherMode.IMPOLITE) {
+      int maxConnections = Math.max(1, _fetcher.getMaxConnectionsPerHost(host));
+      HostRateController rateController = _rateController;
+      return (rateController == null) ? maxConnections : rateController.getMaxConcurrency(host, maxConnections);
+    } else {
+      return 1;
+    }
+  }
+
+  /**
+   * Move retries that are due back into their host's queue. Retries go at
+   * the front, since they've already waited their turn once.
+   */
+  private void queueDueRetries() {
+    RetryQueue retryQueue = _retryQueue;
+    if (retryQueue == null) {
+      return;
+    }
+
+    RetryQueue.Retry retry;
+    while ((retry = retryQueue.poll()) != null) {
+      HostQueue hostQueue = _hostQueues.get(retry.getHost());
+      _retries.put(retry.getUrl(), retry);
+      hostQueue._urls.addFirst(retry.getUrl());
+      scheduleHost(hostQueue);
+    }
+  }
+
+  private boolean hasPendingRetries() {
+    RetryQueue retryQueue = _retryQueue;
+    return (retryQueue != null) && !retryQueue.isEmpty();
+  }
+
+  /**
+   * Add <url> to the seen URL filter, now that we're going to fetch it.
+   */
+  private void markSeen(String url) {
+    SeenUrlFilter seenUrls = _seenUrls;
+    if (seenUrls != null) {
+      seenUrls.add(url);
+    }
+
+    removePending(url);
+  }
+
+  private synchronized void removePending(String url) {
+    if (!_pendingUrls.isEmpty()) {
+      _pendingUrls.remove(url);
+    }
+  }
+
+  private synchronized RetryQueue.Retry takeRetry(String url) {
+    return _retries.isEmpty() ? null : _retries.remove(url);
+  }
+
+  /**
+   * Return the outcome for a URL that we're not going to fetch. If it's a
+   * retry, we report how the last attempt failed, versus why it was skipped.
+   */
+  private FetchOutcome makeSkipOutcome(String url, UrlStatus skipStatus, RetryQueue.Retry retry) {
+    if (retry == null) {
+      return new FetchOutcome(url, skipStatus);
+    } else {
+      return new FetchOutcome(retry.getLastOutcome(), retry.getNumRetries() - 1, System.currentTimeMillis() - retry.getFirstAttemptTime());
+    }
+  }
+
+  private void skipAll(HostQueue hostQueue, UrlStatus skipStatus, List<FetchOutcome> skipped) {
+    for (String url : hostQueue._urls) {
+      _pendingUrls.remove(url);
+      skipped.add(makeSkipOutcome(url, skipStatus, takeRetry(url)));
+    }
+
+    hostQueue._urls.clear();
+  }
+
+  /**
+   * Wait until something changes, or <maxWait> milliseconds, or the next
+   * retry is due, whichever comes first.
+   */
+  private void waitForWork(long maxWait) throws InterruptedException {
+    RetryQueue retryQueue = _retryQueue;
+    long retryDelay = (retryQueue == null) ? -1 : retryQueue.getDelay();
+    if (retryDelay != -1) {
+      maxWait = Math.min(maxWait, Math.max(1, retryDelay));
+    }
+
+    if (maxWait == Long.MAX_VALUE) {
+      wait();
+    } else {
+      wait(maxWait);
+    }
+  }
+
+  private long getTimeUntilCrawlEnd(long now) {
+    if (_policy.getCrawlEndTime() == FetcherPolicy.NO_CRAWL_END_TIME) {
+      return Long.MAX_VALUE;
+    } else {
+      return Math.max(1, _policy.getCrawlEndTime() - now);
+    }
+  }
+}
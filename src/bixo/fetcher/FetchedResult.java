@@ -1,5 +1,6 @@
 package bixo.fetcher;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidParameterException;
 
@@ -10,15 +11,56 @@ public class FetchedResult {
   private final String _fetchedUrl;
   private final long _fetchTime;
   private final byte[] _content;
+  private final int _contentLength;
+  private final int _wireLength;
+  private final File _contentFile;
   private final String _contentType;
   private final int _responseRate;
   private final HttpHeaders _headers;
   private final String _newBaseUrl;
   private final int _numRedirects;
   private final String _hostAddress;
+  private final boolean _notModified;
 
   public FetchedResult(String baseUrl, String redirectedUrl, long fetchTime, HttpHeaders headers, byte[] content, String contentType, int responseRate,
       String newBaseUrl, int numRedirects, String hostAddress) {
+    this(baseUrl, redirectedUrl, fetchTime, headers, content, (content == null) ? 0 : content.length, contentType, responseRate, newBaseUrl,
+        numRedirects, hostAddress);
+  }
+
+  /**
+   * Constructor for when the content length isn't the same as the size of
+   * <content>, e.g. when the body was passed to a BodyHandler instead of being
+   * returned as content.
+   */
+  public FetchedResult(String baseUrl, String redirectedUrl, long fetchTime, HttpHeaders headers, byte[] content, int contentLength,
+      String contentType, int responseRate, String newBaseUrl, int numRedirects, String hostAddress) {
+    this(baseUrl, redirectedUrl, fetchTime, headers, content, contentLength, contentLength, contentType, responseRate, newBaseUrl, numRedirects,
+        hostAddress);
+  }
+
+  /**
+   * Constructor for when the body was transferred with a content encoding, so
+   * the number of bytes on the wire (<wireLength>) isn't the same as the
+   * decoded content length.
+   */
+  public FetchedResult(String baseUrl, String redirectedUrl, long fetchTime, HttpHeaders headers, byte[] content, int contentLength,
+      int wireLength, String contentType, int responseRate, String newBaseUrl, int numRedirects, String hostAddress) {
+    this(baseUrl, redirectedUrl, fetchTime, headers, content, contentLength, wireLength, contentType, responseRate, newBaseUrl, numRedirects,
+        hostAddress, false);
+  }
+
+  /**
+   * Constructor for a "not modified" (HTTP 304) response to a conditional
+   * request, which has no content.
+   */
+  public FetchedResult(String baseUrl, String redirectedUrl, long fetchTime, HttpHeaders headers, String newBaseUrl, int numRedirects,
+      String hostAddress) {
+    this(baseUrl, redirectedUrl, fetchTime, headers, new byte[0], 0, 0, "", 0, newBaseUrl, numRedirects, hostAddress, true);
+  }
+
+  private FetchedResult(String baseUrl, String redirectedUrl, long fetchTime, HttpHeaders headers, byte[] content, int contentLength,
+      int wireLength, String contentType, int responseRate, String newBaseUrl, int numRedirects, String hostAddress, boolean notModified) {
 
     if (baseUrl == null) {
       throw new InvalidParameterException("baseUrl cannot be null");
@@ -48,12 +90,36 @@ public class FetchedResult {
     _fetchedUrl = redirectedUrl;
     _fetchTime = fetchTime;
     _content = content;
+    _contentLength = contentLength;
+    _wireLength = wireLength;
+    _contentFile = null;
     _contentType = contentType;
     _responseRate = responseRate;
     _headers = headers;
     _newBaseUrl = newBaseUrl;
     _numRedirects = numRedirects;
     _hostAddress = hostAddress;
+    _notModified = notModified;
+  }
+
+  /**
+   * Constructor for a result where the body was written to <contentFile>.
+   */
+  public FetchedResult(FetchedResult result, File contentFile) {
+    _baseUrl = result._baseUrl;
+    _fetchedUrl = result._fetchedUrl;
+    _fetchTime = result._fetchTime;
+    _content = result._content;
+    _contentLength = result._contentLength;
+    _wireLength = result._wireLength;
+    _contentFile = contentFile;
+    _contentType = result._contentType;
+    _responseRate = result._responseRate;
+    _headers = result._headers;
+    _newBaseUrl = result._newBaseUrl;
+    _numRedirects = result._numRedirects;
+    _hostAddress = result._hostAddress;
+    _notModified = result._notModified;
   }
 
   public String getBaseUrl() {
@@ -72,6 +138,29 @@ public class FetchedResult {
     return _content;
   }
 
+  /**
+   * @return number of body bytes fetched, which can be more than getContent().length
+   * if the body was passed to a BodyHandler.
+   */
+  public int getContentLength() {
+    return _contentLength;
+  }
+
+  /**
+   * @return number of body bytes received from the server, which is less than
+   * getContentLength() if the body was compressed.
+   */
+  public int getWireLength() {
+    return _wireLength;
+  }
+
+  /**
+   * @return file that the body was written to, or null if it wasn't.
+   */
+  public File getContentFile() {
+    return _contentFile;
+  }
+
   public String getContentAsString(String encoding) {
     try {
       return new String(_content, encoding);
@@ -103,4 +192,12 @@ public class FetchedResult {
   public String getHostAddress() {
     return _hostAddress;
   }
+
+  /**
+   * @return true if this was a conditional request, and the server said that
+   * the content hasn't changed (so there's no content).
+   */
+  public boolean isNotModified() {
+    return _notModified;
+  }
 }
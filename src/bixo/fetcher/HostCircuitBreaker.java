@@ -0,0 +1,277 @@
+package bixo.fetcher;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+
+/**
+ * Per-host circuit breaker, so that when a host goes down we don't make every
+ * queued URL for it wait for a connect timeout.
+ *
+ * After a number of consecutive failures (I/O errors or 5xx responses) the
+ * breaker for the host opens, and requests fail right away. Once the open time
+ * has passed, the breaker is half-open - a single probe request is let
+ * through, and everything else still fails fast. If the probe works the
+ * breaker closes again, otherwise it goes back to being open, with the open
+ * time doubled (up to a max).
+ *
+ * Only hosts that have recently failed are tracked, so memory use is
+ * proportional to the number of failing hosts.
+ */
+public class HostCircuitBreaker {
+  private static Logger LOGGER = Logger.getLogger(HostCircuitBreaker.class);
+
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static final long DEFAULT_OPEN_TIME = 30 * 1000L;
+  public static final long DEFAULT_MAX_OPEN_TIME = 10 * 60 * 1000L;
+
+  public enum State {
+    CLOSED,     // Requests go through as usual.
+    OPEN,       // Requests fail fast.
+    HALF_OPEN   // One probe request goes through, the rest fail fast.
+  }
+
+  private static class HostState {
+    private State _state = State.CLOSED;
+    private int _numFailures = 0;
+    private long _openTime = 0;
+    private long _openUntil = 0;
+    private long _probeStartTime = 0;
+  }
+
+  private final ConcurrentHashMap<String, HostState> _hostStates;
+
+  private int _failureThreshold;
+  private long _openTime;
+  private long _maxOpenTime;
+
+  public HostCircuitBreaker() {
+    this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+  }
+
+  /**
+   * @param failureThreshold
+   *          number of consecutive failures that opens the breaker.
+   * @param openTime
+   *          how long the breaker stays open, before we send a probe.
+   */
+  public HostCircuitBreaker(int failureThreshold, long openTime) {
+    _hostStates = new ConcurrentHashMap<String, HostState>();
+
+    _failureThreshold = failureThreshold;
+    _openTime = openTime;
+    _maxOpenTime = Math.max(openTime, DEFAULT_MAX_OPEN_TIME);
+  }
+
+  public int getFailureThreshold() {
+    return _failureThreshold;
+  }
+
+  public long getOpenTime() {
+    return _openTime;
+  }
+
+  public long getMaxOpenTime() {
+    return _maxOpenTime;
+  }
+
+  /**
+   * Set the longest the breaker will stay open, after repeated failed
+   * probes.
+   *
+   * @param maxOpenTime
+   */
+  public void setMaxOpenTime(long maxOpenTime) {
+    _maxOpenTime = maxOpenTime;
+  }
+
+  /**
+   * Decide whether a request to <host> can go through. If the breaker is
+   * open and it's time for a probe, this request becomes the probe, so the
+   * caller must report the result via onSuccess() or onFailure().
+   *
+   * @param host
+   * @return true if the request should be made, false if it should fail
+   *         fast.
+   */
+  public boolean allowRequest(String host) {
+    HostState hostState = _hostStates.get(host);
+    if (hostState == null) {
+      return true;
+    }
+
+    long now = System.currentTimeMillis();
+    synchronized (hostState) {
+      switch (hostState._state) {
+      case CLOSED:
+        return true;
+
+      case OPEN:
+        if (now < hostState._openUntil) {
+          return false;
+        }
+
+        LOGGER.debug("Sending probe request to " + host);
+        hostState._state = State.HALF_OPEN;
+        hostState._probeStartTime = now;
+        return true;
+
+      case HALF_OPEN:
+        // If the probe never got reported (e.g. it died with a runtime
+        // exception), don't stay stuck - let another one through.
+        if (now - hostState._probeStartTime >= hostState._openTime) {
+          hostState._probeStartTime = now;
+          return true;
+        }
+
+        return false;
+
+      default:
+        throw new RuntimeException("Unknown circuit breaker state: " + hostState._state);
+      }
+    }
+  }
+
+  /**
+   * Record a successful request to <host>, which closes its breaker.
+   *
+   * @param host
+   */
+  public void onSuccess(String host) {
+    HostState hostState = _hostStates.get(host);
+    if (hostState != null) {
+      synchronized (hostState) {
+        if (hostState._state != State.CLOSED) {
+          LOGGER.info("Closing circuit breaker for " + host);
+        }
+
+        _hostStates.remove(host, hostState);
+        hostState._state = State.CLOSED;
+        hostState._numFailures = 0;
+      }
+    }
+  }
+
+  /**
+   * Record a failed request to <host>. I/O errors and server errors count
+   * towards opening the breaker. Any other response (e.g. a 404) means the
+   * host is up, so it's treated like a success. Fetches we cut short
+   * ourselves (time limit, interrupted) don't tell us anything either way.
+   *
+   * @param host
+   * @param e
+   */
+  public void onFailure(String host, BaseFetchException e) {
+    if (e instanceof AbortedFetchException) {
+      AbortedFetchReason reason = ((AbortedFetchException) e).getAbortReason();
+      if ((reason == AbortedFetchReason.TIME_LIMIT) || (reason == AbortedFetchReason.INTERRUPTED)
+          || (reason == AbortedFetchReason.HOST_UNAVAILABLE)) {
+        releaseProbe(host);
+        return;
+      }
+    }
+
+    if (!isHostFailure(e)) {
+      onSuccess(host);
+      return;
+    }
+
+    HostState hostState = getHostState(host);
+    long now = System.currentTimeMillis();
+    synchronized (hostState) {
+      hostState._numFailures += 1;
+
+      if (hostState._state == State.HALF_OPEN) {
+        hostState._openTime = Math.min(_maxOpenTime, hostState._openTime * 2);
+        open(host, hostState, now);
+      } else if ((hostState._state == State.CLOSED) && (hostState._numFailures >= _failureThreshold)) {
+        hostState._openTime = _openTime;
+        open(host, hostState, now);
+      }
+    }
+  }
+
+  /**
+   * @param host
+   * @return current state of the breaker for <host>.
+   */
+  public State getState(String host) {
+    HostState hostState = _hostStates.get(host);
+    if (hostState == null) {
+      return State.CLOSED;
+    }
+
+    synchronized (hostState) {
+      return hostState._state;
+    }
+  }
+
+  /**
+   * @param host
+   * @return number of consecutive failures for <host>.
+   */
+  public int getNumFailures(String host) {
+    HostState hostState = _hostStates.get(host);
+    if (hostState == null) {
+      return 0;
+    }
+
+    synchronized (hostState) {
+      return hostState._numFailures;
+    }
+  }
+
+  private void open(String host, HostState hostState, long now) {
+    LOGGER.info(String.format("Opening circuit breaker for %s for %dms after %d failures", host, hostState._openTime, hostState._numFailures));
+    hostState._state = State.OPEN;
+    hostState._openUntil = now + hostState._openTime;
+  }
+
+  private void releaseProbe(String host) {
+    HostState hostState = _hostStates.get(host);
+    if (hostState != null) {
+      synchronized (hostState) {
+        if (hostState._state == State.HALF_OPEN) {
+          // Let the next request be the probe.
+          hostState._state = State.OPEN;
+          hostState._openUntil = 0;
+        }
+      }
+    }
+  }
+
+  private HostState getHostState(String host) {
+    while (true) {
+      HostState result = _hostStates.get(host);
+      if (result == null) {
+        HostState newState = new HostState();
+        result = _hostStates.putIfAbsent(host, newState);
+        if (result == null) {
+          result = newState;
+        }
+      }
+
+      // onSuccess() might have just removed it, in which case we want a
+      // fresh one that's in the map.
+      if (_hostStates.get(host) == result) {
+        return result;
+      }
+    }
+  }
+
+  private static boolean isHostFailure(BaseFetchException e) {
+    if (e instanceof IOFetchException) {
+      return true;
+    } else if (e instanceof HttpFetchException) {
+      return ((HttpFetchException) e).getHttpStatus() >= 500;
+    } else {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package bixo.fetcher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.conn.params.ConnPerRoute;
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * Max number of connections per host, with overrides for specific hosts (e.g.
+ * partners that allow lots of connections) and for all hosts in a domain.
+ *
+ * An exact host override wins over a domain override, and a longer domain wins
+ * over a shorter one, so "www.partner.com" beats "partner.com", which beats
+ * "com". Hosts that don't match any override get the default limit.
+ *
+ * Limits are looked up for every request, so the result for each host is
+ * cached until the overrides change. Overrides can be changed at any time -
+ * SimpleHttpFetcher notices the change (via getVersion()), and closes idle
+ * connections so that the connection pool for each host is rebuilt using the
+ * new limit. Hosts with active connections switch to the new limit once
+ * they've gone idle.
+ */
+public class HostConnectionLimits implements ConnPerRoute {
+
+  // Don't let the cache grow without bounds, when crawling lots of hosts.
+  private static final int MAX_CACHED_HOSTS = 10000;
+
+  private volatile int _defaultLimit;
+  private volatile Map<String, Integer> _hostLimits;
+  private volatile Map<String, Integer> _domainLimits;
+  private volatile int _version;
+
+  private final ConcurrentHashMap<String, Integer> _cache;
+
+  public HostConnectionLimits(int defaultLimit) {
+    _defaultLimit = defaultLimit;
+    _hostLimits = new HashMap<String, Integer>();
+    _domainLimits = new HashMap<String, Integer>();
+    _version = 0;
+
+    _cache = new ConcurrentHashMap<String, Integer>();
+  }
+
+  public int getDefaultLimit() {
+    return _defaultLimit;
+  }
+
+  public synchronized void setDefaultLimit(int defaultLimit) {
+    _defaultLimit = defaultLimit;
+    changed();
+  }
+
+  /**
+   * Set the max connections to <host>, which overrides any domain limits.
+   *
+   * @param host
+   * @param maxConnections
+   */
+  public synchronized void setHostLimit(String host, int maxConnections) {
+    Map<String, Integer> hostLimits = new HashMap<String, Integer>(_hostLimits);
+    hostLimits.put(host.toLowerCase(), maxConnections);
+    _hostLimits = hostLimits;
+    changed();
+  }
+
+  public synchronized void removeHostLimit(String host) {
+    Map<String, Integer> hostLimits = new HashMap<String, Integer>(_hostLimits);
+    hostLimits.remove(host.toLowerCase());
+    _hostLimits = hostLimits;
+    changed();
+  }
+
+  /**
+   * Set the max connections to <domain> and all of its sub-domains, e.g.
+   * "partner.com" applies to "partner.com" and "www.partner.com". This is per
+   * host, not a total for the domain.
+   *
+   * @param domain
+   * @param maxConnections
+   */
+  public synchronized void setDomainLimit(String domain, int maxConnections) {
+    Map<String, Integer> domainLimits = new HashMap<String, Integer>(_domainLimits);
+    domainLimits.put(normalizeDomain(domain), maxConnections);
+    _domainLimits = domainLimits;
+    changed();
+  }
+
+  public synchronized void removeDomainLimit(String domain) {
+    Map<String, Integer> domainLimits = new HashMap<String, Integer>(_domainLimits);
+    domainLimits.remove(normalizeDomain(domain));
+    _domainLimits = domainLimits;
+    changed();
+  }
+
+  /**
+   * @return counter that's incremented every time a limit changes.
+   */
+  public int getVersion() {
+    return _version;
+  }
+
+  /**
+   * @param host
+   * @return max number of connections to <host>.
+   */
+  public int getLimit(String host) {
+    String key = host.toLowerCase();
+    Integer result = _cache.get(key);
+    if (result == null) {
+      int version = _version;
+      result = calcLimit(key);
+
+      if (_cache.size() >= MAX_CACHED_HOSTS) {
+        _cache.clear();
+      }
+
+      // If the limits changed while we were calculating, what we've got
+      // might be stale.
+      _cache.put(key, result);
+      if (version != _version) {
+        _cache.remove(key);
+      }
+    }
+
+    return result;
+  }
+
+  @Override
+  public int getMaxForRoute(HttpRoute route) {
+    return getLimit(route.getTargetHost().getHostName());
+  }
+
+  private int calcLimit(String host) {
+    Integer result = _hostLimits.get(host);
+    if (result != null) {
+      return result;
+    }
+
+    Map<String, Integer> domainLimits = _domainLimits;
+    if (!domainLimits.isEmpty()) {
+      // Check the host, then each parent domain, so the longest match wins.
+      for (int start = 0; start != -1; start = nextDomainStart(host, start)) {
+        result = domainLimits.get(host.substring(start));
+        if (result != null) {
+          return result;
+        }
+      }
+    }
+
+    return _defaultLimit;
+  }
+
+  private void changed() {
+    // Bump the version first, so getLimit() can tell if it raced with us.
+    _version += 1;
+    _cache.clear();
+  }
+
+  private static int nextDomainStart(String host, int start) {
+    int dot = host.indexOf('.', start);
+    return (dot == -1) ? -1 : dot + 1;
+  }
+
+  private static String normalizeDomain(String domain) {
+    domain = domain.toLowerCase();
+    return domain.startsWith(".") ? domain.substring(1) : domain;
+  }
+}
@@ -0,0 +1,392 @@
+package bixo.fetcher;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.log4j.Logger;
+
+import bixo.datum.HttpHeaders;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+
+/**
+ * Adjusts the crawl delay and max concurrency of each host, based on how the
+ * host is responding. This is AIMD (additive increase, multiplicative
+ * decrease), same as TCP congestion control: while a host is healthy, its
+ * delay shrinks by a fixed step after each fetch, and its concurrency grows
+ * by one every few fetches. When it's struggling (slow responses, server
+ * errors, or a 429/503 telling us to slow down) the delay is doubled and the
+ * concurrency is halved.
+ *
+ * Latency and error rate are tracked as exponentially weighted moving
+ * averages. If a 429 or 503 response has a Retry-After header, we don't fetch
+ * from that host again until then.
+ *
+ * By default a host's delay never drops below the default crawl delay passed
+ * to getCrawlDelay() (e.g. the fetcher policy's crawl delay), so we only ever
+ * slow down. Fetching faster than that has to be asked for, by setting a
+ * lower min crawl delay.
+ */
+public class HostRateController {
+  private static Logger LOGGER = Logger.getLogger(HostRateController.class);
+
+  // Min crawl delay that means "use the default crawl delay", versus a fixed
+  // value.
+  public static final long USE_DEFAULT_CRAWL_DELAY = -1;
+
+  public static final long DEFAULT_MIN_CRAWL_DELAY = USE_DEFAULT_CRAWL_DELAY;
+  public static final long DEFAULT_MAX_CRAWL_DELAY = 5 * 60 * 1000L;
+  public static final long DEFAULT_CRAWL_DELAY_STEP = 250L;
+  public static final long DEFAULT_MAX_LATENCY = 5 * 1000L;
+  public static final double DEFAULT_MAX_ERROR_RATE = 0.2;
+  public static final long DEFAULT_MAX_RETRY_AFTER = 60 * 60 * 1000L;
+
+  // Weight given to each new sample in the moving averages.
+  private static final double LATENCY_WEIGHT = 0.2;
+  private static final double ERROR_WEIGHT = 0.1;
+
+  // Number of healthy fetches before we allow one more concurrent request.
+  private static final int SUCCESSES_PER_CONCURRENCY_STEP = 10;
+
+  // Don't back off more than once per this interval (or the host's latency,
+  // if that's longer), since a burst of errors is one signal, not many.
+  private static final long MIN_BACKOFF_INTERVAL = 1000L;
+
+  private static class HostStats {
+    private double _latency = -1;
+    private double _errorRate = 0;
+    private long _crawlDelay = -1;
+    private long _minCrawlDelay = 0;
+    private int _maxConcurrency = -1;
+    private int _concurrencyLimit = -1;
+    private int _numHealthy = 0;
+    private long _lastBackoffTime = 0;
+    private long _retryAfterTime = 0;
+  }
+
+  private final ConcurrentHashMap<String, HostStats> _hostStats;
+
+  private long _minCrawlDelay;
+  private long _maxCrawlDelay;
+  private long _crawlDelayStep;
+  private long _maxLatency;
+  private double _maxErrorRate;
+  private long _maxRetryAfter;
+
+  public HostRateController() {
+    this(DEFAULT_MIN_CRAWL_DELAY, DEFAULT_MAX_CRAWL_DELAY);
+  }
+
+  /**
+   * @param minCrawlDelay
+   *          fastest we'll ever fetch from a healthy host, or
+   *          USE_DEFAULT_CRAWL_DELAY to never go below the host's default
+   *          crawl delay.
+   * @param maxCrawlDelay
+   *          slowest we'll ever fetch from a struggling host.
+   */
+  public HostRateController(long minCrawlDelay, long maxCrawlDelay) {
+    _hostStats = new ConcurrentHashMap<String, HostStats>();
+
+    _minCrawlDelay = minCrawlDelay;
+    _maxCrawlDelay = maxCrawlDelay;
+    _crawlDelayStep = DEFAULT_CRAWL_DELAY_STEP;
+    _maxLatency = DEFAULT_MAX_LATENCY;
+    _maxErrorRate = DEFAULT_MAX_ERROR_RATE;
+    _maxRetryAfter = DEFAULT_MAX_RETRY_AFTER;
+  }
+
+  public long getCrawlDelayStep() {
+    return _crawlDelayStep;
+  }
+
+  /**
+   * Set how much the crawl delay shrinks after each healthy fetch.
+   *
+   * @param crawlDelayStep
+   */
+  public void setCrawlDelayStep(long crawlDelayStep) {
+    _crawlDelayStep = crawlDelayStep;
+  }
+
+  public long getMaxLatency() {
+    return _maxLatency;
+  }
+
+  /**
+   * Set the average latency above which a host is considered to be
+   * struggling.
+   *
+   * @param maxLatency
+   */
+  public void setMaxLatency(long maxLatency) {
+    _maxLatency = maxLatency;
+  }
+
+  public double getMaxErrorRate() {
+    return _maxErrorRate;
+  }
+
+  /**
+   * Set the average error rate (0 to 1) above which a host is considered to
+   * be struggling.
+   *
+   * @param maxErrorRate
+   */
+  public void setMaxErrorRate(double maxErrorRate) {
+    _maxErrorRate = maxErrorRate;
+  }
+
+  public long getMaxRetryAfter() {
+    return _maxRetryAfter;
+  }
+
+  /**
+   * Set the longest Retry-After delay we'll honor, so a broken server can't
+   * stall a host for the rest of the crawl.
+   *
+   * @param maxRetryAfter
+   */
+  public void setMaxRetryAfter(long maxRetryAfter) {
+    _maxRetryAfter = maxRetryAfter;
+  }
+
+  /**
+   * Record a successful fetch from <host>.
+   *
+   * @param host
+   * @param latency
+   *          time the fetch took, in milliseconds.
+   */
+  public void onSuccess(String host, long latency) {
+    update(host, latency, false, null);
+  }
+
+  /**
+   * Record a failed fetch from <host>. Only failures that say something about
+   * the health of the host (server errors, timeouts, I/O errors, and being
+   * told to slow down) count as errors. Things like a 404 or an invalid
+   * mime-type just count as a response.
+   *
+   * @param host
+   * @param e
+   * @param latency
+   *          time the fetch took, in milliseconds.
+   */
+  public void onFailure(String host, BaseFetchException e, long latency) {
+    if ((e instanceof AbortedFetchException) && (((AbortedFetchException) e).getAbortReason() == AbortedFetchReason.HOST_UNAVAILABLE)) {
+      // We never got as far as talking to the host.
+      return;
+    }
+
+    HttpHeaders throttleHeaders = null;
+    boolean isError = false;
+
+    if (e instanceof HttpFetchException) {
+      HttpFetchException hfe = (HttpFetchException) e;
+      int httpStatus = hfe.getHttpStatus();
+      if ((httpStatus == 429) || (httpStatus == HttpStatus.SC_SERVICE_UNAVAILABLE)) {
+        throttleHeaders = (hfe.getHttpHeaders() == null) ? new HttpHeaders() : hfe.getHttpHeaders();
+        isError = true;
+      } else {
+        isError = (httpStatus >= 500);
+      }
+    } else if (e instanceof IOFetchException) {
+      isError = true;
+    } else if (e instanceof AbortedFetchException) {
+      AbortedFetchReason reason = ((AbortedFetchException) e).getAbortReason();
+      isError = (reason == AbortedFetchReason.SLOW_RESPONSE_RATE) || (reason == AbortedFetchReason.TIME_LIMIT);
+    }
+
+    update(host, latency, isError, throttleHeaders);
+  }
+
+  /**
+   * @param host
+   * @param defaultCrawlDelay
+   *          delay to use if we don't know anything about <host> yet.
+   * @return current delay between requests to <host>, in milliseconds.
+   */
+  public long getCrawlDelay(String host, long defaultCrawlDelay) {
+    HostStats stats = getStats(host);
+    synchronized (stats) {
+      // The default can change, e.g. once we have the site's robots.txt.
+      stats._minCrawlDelay = (_minCrawlDelay == USE_DEFAULT_CRAWL_DELAY) ? defaultCrawlDelay : _minCrawlDelay;
+
+      if (stats._crawlDelay == -1) {
+        stats._crawlDelay = clampCrawlDelay(stats, defaultCrawlDelay);
+      } else {
+        stats._crawlDelay = clampCrawlDelay(stats, stats._crawlDelay);
+      }
+
+      return stats._crawlDelay;
+    }
+  }
+
+  /**
+   * @param host
+   * @param maxConcurrency
+   *          upper limit, e.g. from the host's connection limit.
+   * @return current max number of concurrent requests to <host>.
+   */
+  public int getMaxConcurrency(String host, int maxConcurrency) {
+    HostStats stats = getStats(host);
+    synchronized (stats) {
+      stats._concurrencyLimit = maxConcurrency;
+      if ((stats._maxConcurrency == -1) || (stats._maxConcurrency > maxConcurrency)) {
+        stats._maxConcurrency = maxConcurrency;
+      }
+
+      return Math.max(1, stats._maxConcurrency);
+    }
+  }
+
+  /**
+   * @param host
+   * @return time before which we shouldn't fetch from <host>, because it told
+   *         us to back off, or 0.
+   */
+  public long getRetryAfterTime(String host) {
+    HostStats stats = _hostStats.get(host);
+    if (stats == null) {
+      return 0;
+    }
+
+    synchronized (stats) {
+      return stats._retryAfterTime;
+    }
+  }
+
+  /**
+   * @param host
+   * @return average latency for <host> in milliseconds, or -1 if unknown.
+   */
+  public long getLatency(String host) {
+    HostStats stats = _hostStats.get(host);
+    if (stats == null) {
+      return -1;
+    }
+
+    synchronized (stats) {
+      return Math.round(stats._latency);
+    }
+  }
+
+  /**
+   * @param host
+   * @return average error rate for <host>, from 0 to 1.
+   */
+  public double getErrorRate(String host) {
+    HostStats stats = _hostStats.get(host);
+    if (stats == null) {
+      return 0;
+    }
+
+    synchronized (stats) {
+      return stats._errorRate;
+    }
+  }
+
+  private void update(String host, long latency, boolean isError, HttpHeaders throttleHeaders) {
+    HostStats stats = getStats(host);
+    long now = System.currentTimeMillis();
+
+    synchronized (stats) {
+      stats._latency = (stats._latency < 0) ? latency : (stats._latency * (1 - LATENCY_WEIGHT)) + (latency * LATENCY_WEIGHT);
+      stats._errorRate = (stats._errorRate * (1 - ERROR_WEIGHT)) + (isError ? ERROR_WEIGHT : 0);
+
+      if (throttleHeaders != null) {
+        long retryAfter = getRetryAfter(throttleHeaders, now);
+        if (retryAfter > 0) {
+          stats._retryAfterTime = Math.max(stats._retryAfterTime, now + Math.min(retryAfter, _maxRetryAfter));
+        }
+
+        // Being told to slow down always counts, even if we just backed off.
+        backoff(host, stats, now);
+      } else if (isError || (stats._errorRate > _maxErrorRate) || (stats._latency > _maxLatency)) {
+        if (now - stats._lastBackoffTime >= Math.max(MIN_BACKOFF_INTERVAL, (long) stats._latency)) {
+          backoff(host, stats, now);
+        }
+      } else {
+        // The delay and concurrency start out at the caller's defaults, so
+        // until we know what those are there's nothing to adjust.
+        if (stats._crawlDelay != -1) {
+          stats._crawlDelay = Math.max(stats._minCrawlDelay, stats._crawlDelay - _crawlDelayStep);
+        }
+
+        stats._numHealthy += 1;
+        if ((stats._numHealthy >= SUCCESSES_PER_CONCURRENCY_STEP) && (stats._maxConcurrency < stats._concurrencyLimit)) {
+          stats._numHealthy = 0;
+          stats._maxConcurrency += 1;
+        }
+      }
+    }
+  }
+
+  private void backoff(String host, HostStats stats, long now) {
+    if (stats._crawlDelay != -1) {
+      stats._crawlDelay = clampCrawlDelay(stats, Math.max(_crawlDelayStep, stats._crawlDelay * 2));
+    }
+
+    if (stats._maxConcurrency != -1) {
+      stats._maxConcurrency = Math.max(1, stats._maxConcurrency / 2);
+    }
+
+    stats._numHealthy = 0;
+    stats._lastBackoffTime = now;
+
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug(String.format("Backing off %s: crawl delay %dms, max concurrency %d, latency %dms, error rate %.2f", host, stats._crawlDelay,
+          stats._maxConcurrency, Math.round(stats._latency), stats._errorRate));
+    }
+  }
+
+  private HostStats getStats(String host) {
+    HostStats result = _hostStats.get(host);
+    if (result == null) {
+      HostStats newStats = new HostStats();
+      result = _hostStats.putIfAbsent(host, newStats);
+      if (result == null) {
+        result = newStats;
+      }
+    }
+
+    return result;
+  }
+
+  private long clampCrawlDelay(HostStats stats, long crawlDelay) {
+    return Math.max(stats._minCrawlDelay, Math.min(_maxCrawlDelay, crawlDelay));
+  }
+
+  /**
+   * Parse the Retry-After header, which is either a number of seconds, or an
+   * HTTP date.
+   *
+   * @return delay in milliseconds, or 0 if there isn't a valid one.
+   */
+  static long getRetryAfter(HttpHeaders headers, long now) {
+    String retryAfter = headers.getFirst(HttpHeaderNames.RETRY_AFTER);
+    if (retryAfter == null) {
+      return 0;
+    }
+
+    retryAfter = retryAfter.trim();
+    try {
+      return Math.max(0, Long.parseLong(retryAfter) * 1000L);
+    } catch (NumberFormatException e) {
+      // Try it as a date.
+    }
+
+    try {
+      return Math.max(0, DateUtils.parseDate(retryAfter).getTime() - now);
+    } catch (DateParseException e) {
+      LOGGER.debug("Invalid Retry-After header: " + retryAfter);
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package bixo.fetcher;
+
+import java.net.http.HttpClient;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.UserAgent;
+
+/**
+ * Fetcher that uses HTTP/2 where the server supports it (negotiated via ALPN for
+ * https, or an h2c upgrade for http), and falls back to HTTP/1.1 otherwise.
+ * 
+ * With HTTP/2 all requests to a host are multiplexed as streams over a single
+ * connection, and the number of concurrent streams per host is limited by
+ * FetcherPolicy.getMaxStreamsPerHost(). Hosts that only speak HTTP/1.1 are still
+ * limited to FetcherPolicy.getMaxConnectionsPerHost() concurrent requests.
+ */
+@SuppressWarnings("serial")
+public class Http2Fetcher extends AsyncHttpFetcher {
+
+  public Http2Fetcher(UserAgent userAgent) {
+    super(userAgent);
+
+    setHttpVersion(HttpClient.Version.HTTP_2);
+  }
+
+  public Http2Fetcher(int maxThreads, UserAgent userAgent) {
+    super(maxThreads, userAgent);
+
+    setHttpVersion(HttpClient.Version.HTTP_2);
+  }
+
+  public Http2Fetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
+    super(maxThreads, fetcherPolicy, userAgent);
+
+    setHttpVersion(HttpClient.Version.HTTP_2);
+  }
+}
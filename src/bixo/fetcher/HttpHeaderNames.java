@@ -44,13 +44,23 @@ public interface HttpHeaderNames {
 
     public final static String LAST_MODIFIED = "Last-Modified";
 
+    public final static String ETAG = "ETag";
+
+    public final static String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    public final static String IF_NONE_MATCH = "If-None-Match";
+
     public final static String LOCATION = "Location";
 
+    public final static String RETRY_AFTER = "Retry-After";
+
     public static final String ACCEPT_LANGUAGE = "Accept-Language";
 
     public static final String ACCEPT_CHARSET = "Accept-Charset";
 
     public static final String ACCEPT = "Accept";
+
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
     
 
 }
@@ -0,0 +1,113 @@
+package bixo.fetcher;
+
+/**
+ * Figures out the mime-type of content from its first bytes, for responses
+ * that don't have a Content-Type header, or have one that's wrong.
+ *
+ * This only recognizes formats with a well-known signature (images, audio,
+ * video, archives, executables), plus content that's obviously binary. Text
+ * formats like HTML and XML are too easy to get wrong, so for anything that
+ * looks like text we return null.
+ */
+public class MimeTypeSniffer {
+
+  // Number of bytes to check for binary (non-text) data.
+  private static final int MAX_BINARY_CHECK_LENGTH = 512;
+
+  private static final String OCTET_STREAM = "application/octet-stream";
+
+  private static class Signature {
+    private final int _offset;
+    private final byte[] _bytes;
+    private final String _mimeType;
+
+    public Signature(int offset, String bytes, String mimeType) {
+      _offset = offset;
+      _bytes = new byte[bytes.length()];
+      for (int i = 0; i < _bytes.length; i++) {
+        _bytes[i] = (byte) bytes.charAt(i);
+      }
+
+      _mimeType = mimeType;
+    }
+
+    public boolean matches(byte[] data, int length) {
+      if (length < _offset + _bytes.length) {
+        return false;
+      }
+
+      for (int i = 0; i < _bytes.length; i++) {
+        if (data[_offset + i] != _bytes[i]) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+
+  private static final Signature[] SIGNATURES = {
+    new Signature(0, "%PDF-", "application/pdf"),
+    new Signature(0, "%!PS", "application/postscript"),
+    new Signature(0, "\u0089PNG\r\n\u001a\n", "image/png"),
+    new Signature(0, "GIF87a", "image/gif"),
+    new Signature(0, "GIF89a", "image/gif"),
+    new Signature(0, "\u00ff\u00d8\u00ff", "image/jpeg"),
+    new Signature(0, "II*\u0000", "image/tiff"),
+    new Signature(0, "MM\u0000*", "image/tiff"),
+    new Signature(0, "\u0000\u0000\u0001\u0000", "image/x-icon"),
+    new Signature(8, "WEBP", "image/webp"),
+    new Signature(8, "AVI ", "video/x-msvideo"),
+    new Signature(8, "WAVE", "audio/x-wav"),
+    new Signature(4, "ftyp", "video/mp4"),
+    new Signature(0, "\u001aE\u00df\u00a3", "video/webm"),
+    new Signature(0, "FLV\u0001", "video/x-flv"),
+    new Signature(0, "\u0000\u0000\u0001\u00ba", "video/mpeg"),
+    new Signature(0, "\u0000\u0000\u0001\u00b3", "video/mpeg"),
+    new Signature(0, "0&\u00b2u\u008ef\u00cf\u0011", "video/x-ms-asf"),
+    new Signature(0, "ID3", "audio/mpeg"),
+    new Signature(0, "OggS", "application/ogg"),
+    new Signature(0, "fLaC", "audio/flac"),
+    new Signature(0, "PK\u0003\u0004", "application/zip"),
+    new Signature(0, "\u001f\u008b", "application/x-gzip"),
+    new Signature(0, "BZh", "application/x-bzip2"),
+    new Signature(0, "\u00fd7zXZ\u0000", "application/x-xz"),
+    new Signature(0, "7z\u00bc\u00af'\u001c", "application/x-7z-compressed"),
+    new Signature(0, "Rar!\u001a\u0007", "application/x-rar-compressed"),
+    new Signature(0, "\u00d0\u00cf\u0011\u00e0\u00a1\u00b1\u001a\u00e1", "application/x-ole-storage"),
+    new Signature(0, "\u007fELF", OCTET_STREAM),
+    new Signature(0, "\u00ca\u00fe\u00ba\u00be", "application/java-vm"),
+  };
+
+  /**
+   * Return the mime-type of content that starts with the first <length> bytes
+   * of <data>, or null if it's not a binary format.
+   *
+   * @param data
+   * @param length
+   * @return mime-type, or null
+   */
+  public static String sniff(byte[] data, int length) {
+    for (Signature signature : SIGNATURES) {
+      if (signature.matches(data, length)) {
+        return signature._mimeType;
+      }
+    }
+
+    // Check for control characters that don't show up in text. Byte order
+    // marks for UTF-16 mean we'll see nulls in valid text, so skip those.
+    // Like browsers, we only look at the start of the content.
+    if ((length >= 2) && (((data[0] == (byte) 0xFE) && (data[1] == (byte) 0xFF)) || ((data[0] == (byte) 0xFF) && (data[1] == (byte) 0xFE)))) {
+      return null;
+    }
+
+    for (int i = 0; i < Math.min(length, MAX_BINARY_CHECK_LENGTH); i++) {
+      int b = data[i] & 0xFF;
+      if ((b < 0x09) || ((b > 0x0D) && (b < 0x20) && (b != 0x1B))) {
+        return OCTET_STREAM;
+      }
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,52 @@
+package bixo.fetcher;
+
+/**
+ * Snapshot of the state of the connection pool, either for one route (host)
+ * or for the whole pool.
+ */
+public class PoolStats {
+  private final int _leased;
+  private final int _available;
+  private final int _pending;
+  private final int _max;
+
+  public PoolStats(int leased, int available, int pending, int max) {
+    _leased = leased;
+    _available = available;
+    _pending = pending;
+    _max = max;
+  }
+
+  /**
+   * @return number of connections currently being used by a request.
+   */
+  public int getLeased() {
+    return _leased;
+  }
+
+  /**
+   * @return number of open connections waiting to be reused.
+   */
+  public int getAvailable() {
+    return _available;
+  }
+
+  /**
+   * @return number of requests waiting for a connection.
+   */
+  public int getPending() {
+    return _pending;
+  }
+
+  /**
+   * @return max number of connections allowed.
+   */
+  public int getMax() {
+    return _max;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("leased: %d, available: %d, pending: %d, max: %d", _leased, _available, _pending, _max);
+  }
+}
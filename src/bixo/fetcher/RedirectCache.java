@@ -0,0 +1,266 @@
+package bixo.fetcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import bixo.utils.UrlNormalizer;
+
+/**
+ * Cache of permanent (301) redirects, so that the next fetch of a URL that
+ * we know has moved goes straight to where it moved to, versus making the
+ * same redirect requests (often to another host, over a new connection)
+ * every time.
+ *
+ * URLs are normalized (see UrlNormalizer) before being used as keys, and
+ * chains of cached redirects are followed when looking up a URL. Entries
+ * expire, since permanent redirects aren't always permanent, and the cache is
+ * bounded - once it's full, expired entries are removed, and then if needed
+ * an arbitrary quarter of the entries.
+ *
+ * The cache can be saved to a file and loaded again, so that it survives
+ * restarts.
+ */
+public class RedirectCache {
+  private static Logger LOGGER = Logger.getLogger(RedirectCache.class);
+
+  public static final long DEFAULT_EXPIRATION = 7 * 24 * 60 * 60 * 1000L;
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+  // Most chains are one or two hops, so anything longer is probably a loop.
+  private static final int MAX_HOPS = 10;
+
+  // Longer URLs aren't worth caching, and this keeps them short enough for
+  // writeUTF().
+  private static final int MAX_URL_LENGTH = 4096;
+
+  private static final int FILE_MAGIC = 0x8EDC0301;
+
+  private static class CacheEntry {
+    private final String _target;
+    private final long _expirationTime;
+
+    public CacheEntry(String target, long expirationTime) {
+      _target = target;
+      _expirationTime = expirationTime;
+    }
+  }
+
+  private final ConcurrentHashMap<String, CacheEntry> _cache;
+
+  private volatile long _expiration;
+  private volatile int _maxEntries;
+
+  public RedirectCache() {
+    _cache = new ConcurrentHashMap<String, CacheEntry>();
+    _expiration = DEFAULT_EXPIRATION;
+    _maxEntries = DEFAULT_MAX_ENTRIES;
+  }
+
+  public long getExpiration() {
+    return _expiration;
+  }
+
+  /**
+   * Set how long a redirect is used before we go back to the original URL,
+   * to check that it still redirects to the same place.
+   *
+   * @param expiration
+   */
+  public void setExpiration(long expiration) {
+    _expiration = expiration;
+  }
+
+  public int getMaxEntries() {
+    return _maxEntries;
+  }
+
+  public void setMaxEntries(int maxEntries) {
+    _maxEntries = maxEntries;
+  }
+
+  /**
+   * @param url
+   * @return URL that <url> (eventually) permanently redirects to, or null if
+   *         we don't know of any redirect for it.
+   */
+  public String getTarget(String url) {
+    String key = UrlNormalizer.normalize(url);
+    if (key == null) {
+      return null;
+    }
+
+    long now = System.currentTimeMillis();
+    String result = null;
+    String cur = key;
+    for (int i = 0; i < MAX_HOPS; i++) {
+      CacheEntry entry = _cache.get(cur);
+      if ((entry == null) || (entry._expirationTime <= now)) {
+        return result;
+      } else if (entry._target.equals(key)) {
+        // We've gone around in a circle, so don't trust any of it.
+        _cache.remove(key);
+        return null;
+      }
+
+      result = entry._target;
+      cur = result;
+    }
+
+    return result;
+  }
+
+  /**
+   * Record that <url> permanently redirects to <target>.
+   *
+   * @param url
+   * @param target
+   */
+  public void put(String url, String target) {
+    if ((url.length() > MAX_URL_LENGTH) || (target.length() > MAX_URL_LENGTH)) {
+      return;
+    }
+
+    String key = UrlNormalizer.normalize(url);
+    String normalizedTarget = UrlNormalizer.normalize(target);
+    if ((key == null) || (normalizedTarget == null) || key.equals(normalizedTarget)) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    if (_cache.size() >= _maxEntries) {
+      removeEntries(now);
+    }
+
+    _cache.put(key, new CacheEntry(normalizedTarget, now + _expiration));
+  }
+
+  /**
+   * Forget any redirect for <url>, e.g. because its target no longer works.
+   *
+   * @param url
+   */
+  public void remove(String url) {
+    String key = UrlNormalizer.normalize(url);
+    if (key != null) {
+      _cache.remove(key);
+    }
+  }
+
+  public int size() {
+    return _cache.size();
+  }
+
+  public void clear() {
+    _cache.clear();
+  }
+
+  /**
+   * Write all current entries to <file>. This goes to a temp file first,
+   * which then atomically replaces <file>, so a crash while saving doesn't
+   * lose the previous copy.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void save(File file) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    long now = System.currentTimeMillis();
+    int numEntries = 0;
+
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        out.writeInt(FILE_MAGIC);
+
+        for (Map.Entry<String, CacheEntry> entry : _cache.entrySet()) {
+          CacheEntry value = entry.getValue();
+          if (value._expirationTime > now) {
+            out.writeBoolean(true);
+            out.writeUTF(entry.getKey());
+            out.writeUTF(value._target);
+            out.writeLong(value._expirationTime);
+            numEntries += 1;
+          }
+        }
+
+        out.writeBoolean(false);
+      } finally {
+        out.close();
+      }
+
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      tempFile.delete();
+      throw e;
+    }
+
+    LOGGER.debug(String.format("Saved %d redirects to %s", numEntries, file));
+  }
+
+  /**
+   * Add the (unexpired) entries saved in <file> to the cache. Entries that
+   * are already in the cache are replaced.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void load(File file) throws IOException {
+    long now = System.currentTimeMillis();
+    int numEntries = 0;
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != FILE_MAGIC) {
+        throw new IOException("Not a redirect cache file: " + file);
+      }
+
+      while (in.readBoolean()) {
+        String key = in.readUTF();
+        String target = in.readUTF();
+        long expirationTime = in.readLong();
+
+        if ((expirationTime > now) && (_cache.size() < _maxEntries)) {
+          _cache.put(key, new CacheEntry(target, expirationTime));
+          numEntries += 1;
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    LOGGER.debug(String.format("Loaded %d redirects from %s", numEntries, file));
+  }
+
+  /**
+   * Make room for new entries, by removing expired entries, and then (if
+   * that wasn't enough) arbitrary entries until the cache is 3/4 full.
+   */
+  private void removeEntries(long now) {
+    Iterator<CacheEntry> iter = _cache.values().iterator();
+    while (iter.hasNext()) {
+      if (iter.next()._expirationTime <= now) {
+        iter.remove();
+      }
+    }
+
+    int targetSize = (_maxEntries / 4) * 3;
+    iter = _cache.values().iterator();
+    while ((_cache.size() > targetSize) && iter.hasNext()) {
+      iter.next();
+      iter.remove();
+    }
+  }
+}
@@ -0,0 +1,333 @@
+package bixo.fetcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+
+/**
+ * Queue of failed fetches waiting to be retried. Instead of retrying right
+ * away in the fetching thread, a retryable failure is put in this queue with
+ * an exponential backoff delay (plus random jitter, so retries to the same
+ * host don't all fire at once), and the thread moves on to other work.
+ *
+ * Failures are classified using BaseFetchException.mapToUrlStatus() - I/O
+ * errors, server errors, slow responses, and 408/429 responses are retried,
+ * everything else is final. A Retry-After header on the response is honored,
+ * unless it asks us to wait longer than the max delay, in which case we give
+ * up.
+ *
+ * Each host also has a retry budget, so a host that's failing everything
+ * doesn't get a multiple of its URLs in requests: retries are only allowed
+ * while a host's retries are less than a minimum plus a fraction of its
+ * fetch attempts.
+ */
+public class RetryQueue {
+
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  public static final long DEFAULT_BASE_DELAY = 1000L;
+  public static final long DEFAULT_MAX_DELAY = 60 * 1000L;
+  public static final int DEFAULT_MIN_RETRIES_PER_HOST = 10;
+  public static final double DEFAULT_RETRY_BUDGET_RATIO = 0.2;
+
+  // HTTP status for "Too Many Requests", from RFC 6585.
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  /**
+   * A URL waiting to be retried, along with its history.
+   */
+  public static class Retry implements Delayed {
+    private final String _url;
+    private final String _host;
+    private final int _numRetries;
+    private final long _firstAttemptTime;
+    private final FetchOutcome _lastOutcome;
+    private final long _retryTime;
+
+    public Retry(String url, String host, int numRetries, long firstAttemptTime, FetchOutcome lastOutcome, long retryTime) {
+      _url = url;
+      _host = host;
+      _numRetries = numRetries;
+      _firstAttemptTime = firstAttemptTime;
+      _lastOutcome = lastOutcome;
+      _retryTime = retryTime;
+    }
+
+    public String getUrl() {
+      return _url;
+    }
+
+    public String getHost() {
+      return _host;
+    }
+
+    /**
+     * @return number of this retry, starting at 1.
+     */
+    public int getNumRetries() {
+      return _numRetries;
+    }
+
+    public long getFirstAttemptTime() {
+      return _firstAttemptTime;
+    }
+
+    /**
+     * @return outcome of the failed attempt that's being retried.
+     */
+    public FetchOutcome getLastOutcome() {
+      return _lastOutcome;
+    }
+
+    public long getRetryTime() {
+      return _retryTime;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(_retryTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      long otherTime = ((Retry) o)._retryTime;
+      if (_retryTime < otherTime) {
+        return -1;
+      } else if (_retryTime > otherTime) {
+        return 1;
+      } else {
+        return 0;
+      }
+    }
+  }
+
+  private static class HostBudget {
+    private int _numAttempts = 0;
+    private int _numRetries = 0;
+  }
+
+  private final DelayQueue<Retry> _queue;
+  private final ConcurrentHashMap<String, HostBudget> _budgets;
+  private final Random _random;
+
+  private int _maxRetries;
+  private long _baseDelay;
+  private long _maxDelay;
+  private int _minRetriesPerHost;
+  private double _retryBudgetRatio;
+
+  public RetryQueue() {
+    this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * @param maxRetries
+   *          max number of times to retry one URL.
+   * @param baseDelay
+   *          delay before the first retry, which doubles for each retry after
+   *          that.
+   * @param maxDelay
+   *          max delay before any retry.
+   */
+  public RetryQueue(int maxRetries, long baseDelay, long maxDelay) {
+    _queue = new DelayQueue<Retry>();
+    _budgets = new ConcurrentHashMap<String, HostBudget>();
+    _random = new Random();
+
+    _maxRetries = maxRetries;
+    _baseDelay = baseDelay;
+    _maxDelay = maxDelay;
+    _minRetriesPerHost = DEFAULT_MIN_RETRIES_PER_HOST;
+    _retryBudgetRatio = DEFAULT_RETRY_BUDGET_RATIO;
+  }
+
+  public int getMaxRetries() {
+    return _maxRetries;
+  }
+
+  public long getBaseDelay() {
+    return _baseDelay;
+  }
+
+  public long getMaxDelay() {
+    return _maxDelay;
+  }
+
+  /**
+   * Set the retry budget for each host. A host can always have
+   * <minRetriesPerHost> retries, plus <retryBudgetRatio> times the number of
+   * fetch attempts.
+   *
+   * @param minRetriesPerHost
+   * @param retryBudgetRatio
+   */
+  public void setRetryBudget(int minRetriesPerHost, double retryBudgetRatio) {
+    _minRetriesPerHost = minRetriesPerHost;
+    _retryBudgetRatio = retryBudgetRatio;
+  }
+
+  /**
+   * @param e
+   * @return true if the fetch that threw <e> is worth retrying.
+   */
+  public boolean isRetryable(BaseFetchException e) {
+    switch (e.mapToUrlStatus()) {
+    case ERROR_IOEXCEPTION:
+    case ABORTED_SLOW_RESPONSE:
+      return true;
+
+    case HTTP_SERVER_ERROR:
+      return getHttpStatus(e) != HttpStatus.SC_NOT_IMPLEMENTED;
+
+    case HTTP_CLIENT_ERROR:
+      int httpStatus = getHttpStatus(e);
+      return (httpStatus == HttpStatus.SC_REQUEST_TIMEOUT) || (httpStatus == SC_TOO_MANY_REQUESTS);
+
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Record a fetch attempt (including retries) for <host>, which is what the
+   * host's retry budget is based on.
+   *
+   * @param host
+   */
+  public void recordAttempt(String host) {
+    HostBudget budget = getBudget(host);
+    synchronized (budget) {
+      budget._numAttempts += 1;
+    }
+  }
+
+  /**
+   * Queue up a retry of <url>, if the failure is retryable, and we haven't
+   * run out of retries for the URL or the host.
+   *
+   * @param url
+   * @param host
+   * @param outcome
+   *          failed outcome of the last attempt.
+   * @param previous
+   *          the retry that failed, or null if this was the first attempt.
+   * @param firstAttemptTime
+   *          when the first attempt was made.
+   * @return true if a retry was queued.
+   */
+  public boolean offer(String url, String host, FetchOutcome outcome, Retry previous, long firstAttemptTime) {
+    BaseFetchException e = outcome.getException();
+    int numRetries = (previous == null) ? 1 : previous.getNumRetries() + 1;
+    if ((e == null) || (numRetries > _maxRetries) || !isRetryable(e)) {
+      return false;
+    }
+
+    long now = System.currentTimeMillis();
+    long delay = calcDelay(numRetries);
+
+    if (e instanceof HttpFetchException) {
+      HttpFetchException hfe = (HttpFetchException) e;
+      if (hfe.getHttpHeaders() != null) {
+        long retryAfter = HostRateController.getRetryAfter(hfe.getHttpHeaders(), now);
+        if (retryAfter > _maxDelay) {
+          return false;
+        }
+
+        delay = Math.max(delay, retryAfter);
+      }
+    }
+
+    HostBudget budget = getBudget(host);
+    synchronized (budget) {
+      if (budget._numRetries >= _minRetriesPerHost + (int) (budget._numAttempts * _retryBudgetRatio)) {
+        return false;
+      }
+
+      budget._numRetries += 1;
+    }
+
+    _queue.add(new Retry(url, host, numRetries, firstAttemptTime, outcome, now + delay));
+    return true;
+  }
+
+  /**
+   * @return next retry that's due, or null if there isn't one.
+   */
+  public Retry poll() {
+    return _queue.poll();
+  }
+
+  /**
+   * @return time in milliseconds until the next retry is due, or -1 if the
+   *         queue is empty.
+   */
+  public long getDelay() {
+    Retry head = _queue.peek();
+    return (head == null) ? -1 : Math.max(0, head.getDelay(TimeUnit.MILLISECONDS));
+  }
+
+  public boolean isEmpty() {
+    return _queue.isEmpty();
+  }
+
+  public int size() {
+    return _queue.size();
+  }
+
+  /**
+   * Remove all retries, whether they're due or not.
+   *
+   * @return retries that were in the queue.
+   */
+  public List<Retry> drain() {
+    List<Retry> result = new ArrayList<Retry>(_queue.size());
+    for (Retry retry : _queue.toArray(new Retry[0])) {
+      if (_queue.remove(retry)) {
+        result.add(retry);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Exponential backoff with "equal jitter" - half the delay is fixed, and
+   * half is random, so we always back off but retries get spread out.
+   */
+  private long calcDelay(int numRetries) {
+    long delay = _baseDelay << Math.min(numRetries - 1, 30);
+    if ((delay <= 0) || (delay > _maxDelay)) {
+      delay = _maxDelay;
+    }
+
+    long halfDelay = delay / 2;
+    synchronized (_random) {
+      return halfDelay + (long) (_random.nextDouble() * (delay - halfDelay));
+    }
+  }
+
+  private HostBudget getBudget(String host) {
+    HostBudget result = _budgets.get(host);
+    if (result == null) {
+      HostBudget newBudget = new HostBudget();
+      result = _budgets.putIfAbsent(host, newBudget);
+      if (result == null) {
+        result = newBudget;
+      }
+    }
+
+    return result;
+  }
+
+  private static int getHttpStatus(BaseFetchException e) {
+    return (e instanceof HttpFetchException) ? ((HttpFetchException) e).getHttpStatus() : -1;
+  }
+}
@@ -22,28 +22,54 @@
  */
 package bixo.fetcher;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.TrustManager;
 
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
@@ -70,9 +96,11 @@ import org.apache.http.client.params.ClientParamBean;
 import org.apache.http.client.params.CookiePolicy;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -82,8 +110,10 @@ import org.apache.http.cookie.params.CookieSpecParamBean;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.client.DefaultRedirectHandler;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
@@ -91,6 +121,7 @@ import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 
@@ -99,6 +130,7 @@ import bixo.config.UserAgent;
 import bixo.config.FetcherPolicy.RedirectMode;
 
 import bixo.datum.HttpHeaders;
+import bixo.datum.UrlStatus;
 import bixo.exceptions.AbortedFetchException;
 import bixo.exceptions.AbortedFetchReason;
 import bixo.exceptions.BaseFetchException;
@@ -107,6 +139,7 @@ import bixo.exceptions.IOFetchException;
 import bixo.exceptions.RedirectFetchException;
 import bixo.exceptions.UrlFetchException;
 import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.utils.UrlNormalizer;
 
 @SuppressWarnings("serial")
 public class SimpleHttpFetcher extends BaseFetcher {
@@ -127,31 +160,76 @@ public class SimpleHttpFetcher extends BaseFetcher {
   // multiple threads to hit the same domain. So jack the value way up.
   private static final long CONNECTION_POOL_TIMEOUT = 100 * 1000L;
 
-  private static final int BUFFER_SIZE = 8 * 1024;
   private static final int DEFAULT_MAX_RETRY_COUNT = 10;
 
-  private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
+  // Stale checking is disabled, so connections that sit idle for too long are
+  // closed before the server gets around to closing them on us. Servers that
+  // don't tell us their keep-alive timeout get the same value, which is
+  // longer than Apache's default of 5 seconds, but Apache does send it.
+  private static final int DEFAULT_IDLE_CONNECTION_TIMEOUT = 10 * 1000;
+
+  // How often the reaper thread closes idle and expired connections.
+  private static final long CONNECTION_REAPER_INTERVAL = 5 * 1000L;
+
+  // Give up on a connection a bit before the server's keep-alive timeout, so
+  // we don't race with the server closing it.
+  private static final long KEEP_ALIVE_MARGIN = 1000L;
+
+  // How often the watchdog thread checks the response rate and deadline of
+  // active requests. A read that's been going for less than this is never
+  // aborted for being slow, same as we skip the first read when checking the
+  // rate in doRequest().
+  private static final long WATCHDOG_INTERVAL = 1000L;
+
+  // We allocate the content array up front when we know the content length,
+  // but don't trust servers with giant Content-Length values.
+  private static final int MAX_PRESIZED_CONTENT = 8 * 1024 * 1024;
+
+  // How long fetchAll() threads stick around when there's nothing to fetch.
+  private static final long FETCH_ALL_THREAD_KEEPALIVE = 10 * 1000L;
 
   // TODO KKr - figure out best value for this.
   // This is what Firefox uses (below)
   // Nutch has
   // text/html,application/xml;q=0.9,application/xhtml+xml,text/xml;q=0.9,text/plain;q=0.8,image/png,*/*;q=0.5
-  private static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
-  private static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
+  static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+  static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
+  static final String DEFAULT_ACCEPT_ENCODING = "gzip,deflate";
 
   // Keys used to access data in the Http execution context.
   private static final String PERM_REDIRECT_CONTEXT_KEY = "perm-redirect";
+  private static final String PERM_TARGET_CONTEXT_KEY = "perm-target";
+  private static final String TEMP_REDIRECT_CONTEXT_KEY = "temp-redirect";
   private static final String REDIRECT_COUNT_CONTEXT_KEY = "redirect-count";
   private static final String HOST_ADDRESS = "host-address";
+  private static final String DEADLINE_CONTEXT_KEY = "deadline";
+
+  // Passed as the deadline to fetch() when the only limits are the ones from
+  // the fetcher policy.
+  public static final long NO_DEADLINE = FetcherPolicy.NO_CRAWL_END_TIME;
 
-  private static final String SSL_CONTEXT_NAMES[] = {"TLS", "Default", "SSL",};
+  static final String SSL_CONTEXT_NAMES[] = {"TLS", "Default", "SSL",};
 
   private HttpVersion _httpVersion;
   private int _socketTimeout;
   private int _connectionTimeout;
   private int _maxRetryCount;
+  private boolean _acceptCompressed;
+  private int _idleConnectionTimeout;
 
   transient private DefaultHttpClient _httpClient;
+  transient private IdleConnectionReaper _connectionReaper;
+  transient private FetchWatchdog _fetchWatchdog;
+  transient private CachingHostResolver _hostResolver;
+  transient private HostConnectionLimits _connectionLimits;
+  transient private volatile int _connectionLimitsVersion;
+  transient private BufferPool _bufferPool;
+  transient private Set<ActiveRequest> _activeRequests;
+  transient private ValidatorStore _validatorStore;
+  transient private DiskResponseCache _responseCache;
+  transient private volatile HostCircuitBreaker _circuitBreaker;
+  transient private volatile RedirectCache _redirectCache;
+  transient private volatile boolean _aborted;
 
   private static class MyRequestRetryHandler implements HttpRequestRetryHandler {
     private int _maxRetryCount;
@@ -169,6 +247,9 @@ public class SimpleHttpFetcher extends BaseFetcher {
       if (executionCount >= _maxRetryCount) {
         // Do not retry if over max retry count
         return false;
+      } else if (isPastDeadline(context)) {
+        // Do not retry if we're out of time
+        return false;
       } else if (exception instanceof NoHttpResponseException) {
         // Retry if the server dropped connection on us
         return true;
@@ -184,6 +265,321 @@ public class SimpleHttpFetcher extends BaseFetcher {
     }
   }
 
+  /**
+   * Iterator that keeps up to getMaxThreads() fetches running, and returns
+   * their outcomes as they complete. URLs for unknown hosts are skipped
+   * without being fetched, but we stop reading input once getMaxThreads() of
+   * them are waiting to be returned, so a long run of them doesn't pull all of
+   * the input into memory.
+   * 
+   */
+  private class FetchAllIterator implements Iterator<FetchOutcome> {
+    private Iterator<String> _urls;
+    private List<Tuple2<?,?>> _headers;
+    private ThreadPoolExecutor _executor;
+    private CompletionService<FetchOutcome> _completionService;
+    private ArrayDeque<FetchOutcome> _skipped;
+    private int _numActive;
+
+    public FetchAllIterator(Iterator<String> urls, List<Tuple2<?,?>> headers) {
+      _urls = urls;
+      _headers = headers;
+      _skipped = new ArrayDeque<FetchOutcome>();
+      _numActive = 0;
+
+      // Let idle threads die off, so an abandoned iterator doesn't leak them.
+      _executor = new ThreadPoolExecutor(_maxThreads, _maxThreads, FETCH_ALL_THREAD_KEEPALIVE, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread result = new Thread(r, "SimpleHttpFetcher-fetchAll");
+              result.setDaemon(true);
+              return result;
+            }
+          });
+      _executor.allowCoreThreadTimeOut(true);
+      _completionService = new ExecutorCompletionService<FetchOutcome>(_executor);
+
+      fill();
+    }
+
+    private void fill() {
+      while ((_numActive < _maxThreads) && (_skipped.size() < _maxThreads) && _urls.hasNext()) {
+        final String url = _urls.next();
+
+        // Don't tie up a thread with a URL we know we can't fetch.
+        if (isUnknownHost(UrlNormalizer.getHost(url))) {
+          _skipped.add(new FetchOutcome(url, UrlStatus.SKIPPED_UNKNOWN_HOST));
+          continue;
+        }
+
+        _completionService.submit(new Callable<FetchOutcome>() {
+
+          @Override
+          public FetchOutcome call() {
+            try {
+              return new FetchOutcome(url, get(url, _headers));
+            } catch (BaseFetchException e) {
+              return new FetchOutcome(url, e);
+            } catch (RuntimeException e) {
+              return new FetchOutcome(url, new IOFetchException(url, new IOException(e)));
+            }
+          }
+        });
+
+        _numActive += 1;
+      }
+
+      if ((_numActive == 0) && !_urls.hasNext()) {
+        _executor.shutdown();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return (_numActive > 0) || !_skipped.isEmpty();
+    }
+
+    @Override
+    public FetchOutcome next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      if (!_skipped.isEmpty()) {
+        FetchOutcome result = _skipped.poll();
+        fill();
+        return result;
+      }
+
+      try {
+        FetchOutcome result = _completionService.take().get();
+        _numActive -= 1;
+        fill();
+        return result;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        _executor.shutdownNow();
+        throw new IllegalStateException("Interrupted while waiting for fetch results");
+      } catch (ExecutionException e) {
+        // Can't happen, since our callable catches everything.
+        throw new IllegalStateException("Unexpected exception from fetch", e.getCause());
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Default body handler, which collects the body as the result's content.
+   * 
+   * If we know the length up front we write straight into an array of that
+   * size, which (normally) becomes the content without any copying. Otherwise
+   * the body goes into pooled blocks, which get copied once into the final
+   * array.
+   */
+  private static class ContentCollector implements BodyHandler {
+    private BufferPool _pool;
+    private byte[] _content;
+    private List<byte[]> _blocks;
+    private int _length;
+
+    public ContentCollector(BufferPool pool, int expectedLength) {
+      _pool = pool;
+      _length = 0;
+
+      if ((expectedLength >= 0) && (expectedLength <= MAX_PRESIZED_CONTENT)) {
+        _content = new byte[expectedLength];
+      } else {
+        _blocks = new ArrayList<byte[]>();
+      }
+    }
+
+    @Override
+    public void onContent(ByteBuffer chunk) {
+      if ((_content != null) && (_length + chunk.remaining() > _content.length)) {
+        // Server lied about the content length, so fall back to blocks.
+        byte[] content = _content;
+        int length = _length;
+        _content = null;
+        _blocks = new ArrayList<byte[]>();
+        _length = 0;
+        onContent(ByteBuffer.wrap(content, 0, length));
+      }
+
+      if (_content != null) {
+        int len = chunk.remaining();
+        chunk.get(_content, _length, len);
+        _length += len;
+        return;
+      }
+
+      while (chunk.hasRemaining()) {
+        int blockOffset = _length % _pool.getBufferSize();
+        if (blockOffset == 0) {
+          _blocks.add(_pool.acquire());
+        }
+
+        int len = Math.min(chunk.remaining(), _pool.getBufferSize() - blockOffset);
+        chunk.get(_blocks.get(_blocks.size() - 1), blockOffset, len);
+        _length += len;
+      }
+    }
+
+    public byte[] getContent() {
+      if (_content != null) {
+        return (_length == _content.length) ? _content : Arrays.copyOf(_content, _length);
+      }
+
+      byte[] result = new byte[_length];
+      int offset = 0;
+      for (byte[] block : _blocks) {
+        int len = Math.min(block.length, _length - offset);
+        System.arraycopy(block, 0, result, offset, len);
+        offset += len;
+      }
+
+      release();
+      return result;
+    }
+
+    public void release() {
+      if (_blocks != null) {
+        for (byte[] block : _blocks) {
+          _pool.release(block);
+        }
+
+        _blocks.clear();
+      }
+
+      _length = 0;
+    }
+  }
+
+  /**
+   * Body handler that writes the body to a file.
+   * 
+   */
+  private static class FileBodyHandler implements BodyHandler {
+    private FileChannel _channel;
+
+    public FileBodyHandler(FileChannel channel) {
+      _channel = channel;
+    }
+
+    @Override
+    public void onContent(ByteBuffer chunk) throws IOException {
+      while (chunk.hasRemaining()) {
+        _channel.write(chunk);
+      }
+    }
+  }
+
+  /**
+   * A request that's currently being executed, so that it can be aborted from
+   * another thread. Once aborted, whatever exception the fetching thread gets
+   * is reported as an AbortedFetchException with the abort reason.
+   * 
+   */
+  private static class ActiveRequest {
+    private final HttpRequestBase _request;
+    private final long _deadline;
+    private volatile AbortedFetchReason _abortReason;
+
+    // Set while we're reading the response body, so the watchdog can check
+    // the response rate. A read start time of zero means we're not reading.
+    private long _readStartTime;
+    private long _bodyStartTime;
+    private volatile long _bytesRead;
+
+    public ActiveRequest(HttpRequestBase request, long deadline) {
+      _request = request;
+      _deadline = deadline;
+      _abortReason = null;
+      _readStartTime = 0;
+    }
+
+    public AbortedFetchReason getAbortReason() {
+      return _abortReason;
+    }
+
+    public long getDeadline() {
+      return _deadline;
+    }
+
+    public boolean isPastDeadline(long now) {
+      return now >= _deadline;
+    }
+
+    /**
+     * @param readStartTime
+     *          time the request was made, which is what the response rate is
+     *          calculated from.
+     */
+    public synchronized void startReading(long readStartTime) {
+      _bytesRead = 0;
+      _bodyStartTime = System.currentTimeMillis();
+      _readStartTime = readStartTime;
+    }
+
+    public void setBytesRead(long bytesRead) {
+      _bytesRead = bytesRead;
+    }
+
+    public synchronized void doneReading() {
+      _readStartTime = 0;
+    }
+
+    /**
+     * Abort the request if we've been reading the body for a while, and the
+     * response rate is below <minResponseRate>.
+     * 
+     * @return true if the request was aborted.
+     */
+    public synchronized boolean abortIfSlow(long now, int minResponseRate) {
+      if ((_readStartTime == 0) || (_abortReason != null) || (now - _bodyStartTime < WATCHDOG_INTERVAL)) {
+        return false;
+      }
+
+      long readRate = (_bytesRead * 1000L) / Math.max(1, now - _readStartTime);
+      if (readRate >= minResponseRate) {
+        return false;
+      }
+
+      LOGGER.trace(String.format("Aborting %s due to slow response rate of %d bytes/sec", _request.getURI(), readRate));
+      abort(AbortedFetchReason.SLOW_RESPONSE_RATE);
+      return true;
+    }
+
+    /**
+     * Abort the request if it's still running past its deadline. Unlike
+     * abortIfSlow(), this applies to every phase of the request.
+     * 
+     * @return true if the request was aborted.
+     */
+    public synchronized boolean abortIfPastDeadline(long now) {
+      if ((_abortReason != null) || !isPastDeadline(now)) {
+        return false;
+      }
+
+      LOGGER.trace(String.format("Aborting %s due to fetch deadline", _request.getURI()));
+      abort(AbortedFetchReason.TIME_LIMIT);
+      return true;
+    }
+
+    public void abort(AbortedFetchReason reason) {
+      _abortReason = reason;
+
+      // This closes the underlying connection, so a thread blocked in connect
+      // or read gets an IOException right away.
+      safeAbort(true, _request);
+    }
+  }
+
   private static class MyRedirectException extends RedirectException {
 
     private URI _uri;
@@ -220,32 +616,34 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
     @Override
     public URI getLocationURI(HttpResponse response, HttpContext context) throws ProtocolException {
+      if (isPastDeadline(context)) {
+        throw new ProtocolException("Fetch deadline exceeded, not following redirect");
+      }
 
-      // HACK by Julius - some sites return a redirect with a " " space
-      // character rather
-      // than a properly encoded %20 -- this is to catch that error
+      // Some sites return a redirect with unencoded characters (e.g. a " "
+      // rather than %20), which would make the URI invalid, so encode them.
       Header redirectHeader = response.getFirstHeader("Location");
       String redirectHeaderValue = redirectHeader.getValue();
-      if (redirectHeaderValue.contains(" ")) {
-        response.setHeader("Location", StringUtils.replace(redirectHeaderValue, " ", "%20"));
+      String encodedValue = UrlNormalizer.encodeIllegalChars(redirectHeaderValue);
+      if (encodedValue != redirectHeaderValue) {
+        response.setHeader("Location", encodedValue);
       }
 
       URI result = super.getLocationURI(response, context);
 
-      // HACK - some sites return a redirect with an explicit port number that's
-      // the same as
-      // the default port (e.g. 80 for http), and then when you use this to make
-      // the next
-      // request, the presence of the port in the domain triggers another
-      // redirect, so you
-      // fail with a circular redirect error. Avoid that by converting the port
-      // number to
-      // -1 in that case.
-      if (result.getScheme().equalsIgnoreCase("http") && (result.getPort() == 80)) {
+      // Some sites return a redirect with an explicit port number that's the
+      // same as the default port (e.g. 80 for http), and then when you use
+      // this to make the next request, the presence of the port in the domain
+      // triggers another redirect, so you fail with a circular redirect error.
+      // Avoid that (and redirects that only differ by case, dot segments, etc)
+      // by normalizing the URL, which only needs a new URI if it changed.
+      String location = result.toString();
+      String normalized = UrlNormalizer.normalize(location);
+      if ((normalized != null) && !normalized.equals(location)) {
         try {
-          result = new URI(result.getScheme(), result.getUserInfo(), result.getHost(), -1, result.getPath(), result.getQuery(), result.getFragment());
+          result = new URI(normalized);
         } catch (URISyntaxException e) {
-          LOGGER.warn("Unexpected exception removing port from URI", e);
+          LOGGER.warn("Unexpected exception normalizing redirect URI: " + location, e);
         }
       }
 
@@ -257,10 +655,17 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
       context.setAttribute(REDIRECT_COUNT_CONTEXT_KEY, count + 1);
 
-      // Record the last permanent redirect
+      // Record the last permanent redirect, and the last one that we got to
+      // by only following permanent redirects (which is where the original
+      // URL has moved to).
       int statusCode = response.getStatusLine().getStatusCode();
       if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY) {
         context.setAttribute(PERM_REDIRECT_CONTEXT_KEY, result);
+        if (context.getAttribute(TEMP_REDIRECT_CONTEXT_KEY) == null) {
+          context.setAttribute(PERM_TARGET_CONTEXT_KEY, result);
+        }
+      } else {
+        context.setAttribute(TEMP_REDIRECT_CONTEXT_KEY, Boolean.TRUE);
       }
 
       // Based on the redirect mode, decide how we want to handle this.
@@ -275,7 +680,9 @@ public class SimpleHttpFetcher extends BaseFetcher {
   }
 
   /**
-   * Interceptor to record host address in context.
+   * Interceptor to record host address in context, and to make sure that we
+   * don't wait for a response past the fetch deadline. This gets called for
+   * every hop (redirect or retry), so each one gets whatever time is left.
    * 
    */
   private static class MyRequestInterceptor implements HttpRequestInterceptor {
@@ -286,6 +693,149 @@ public class SimpleHttpFetcher extends BaseFetcher {
       HttpInetConnection connection = (HttpInetConnection) (context.getAttribute(ExecutionContext.HTTP_CONNECTION));
 
       context.setAttribute(HOST_ADDRESS, connection.getRemoteAddress().getHostAddress());
+
+      Long deadline = (Long) context.getAttribute(DEADLINE_CONTEXT_KEY);
+      if (deadline != null) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new IOException("Fetch deadline exceeded");
+        } else if ((connection.getSocketTimeout() == 0) || (remaining < connection.getSocketTimeout())) {
+          connection.setSocketTimeout((int) remaining);
+        }
+      }
+    }
+  }
+
+  /**
+   * Keep connections alive for as long as the server says (via the
+   * "Keep-Alive: timeout=xxx" header), but never longer than our idle
+   * connection timeout.
+   */
+  private static class MyKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+    private long _maxKeepAlive;
+
+    public MyKeepAliveStrategy(long maxKeepAlive) {
+      _maxKeepAlive = maxKeepAlive;
+    }
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+      HeaderElementIterator iter = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+      while (iter.hasNext()) {
+        HeaderElement element = iter.nextElement();
+        if ("timeout".equalsIgnoreCase(element.getName()) && (element.getValue() != null)) {
+          try {
+            long keepAlive = (Long.parseLong(element.getValue().trim()) * 1000L) - KEEP_ALIVE_MARGIN;
+
+            // Zero or less means forever, so use the shortest time we can.
+            return Math.max(1, Math.min(keepAlive, _maxKeepAlive));
+          } catch (NumberFormatException e) {
+            LOGGER.trace("Invalid Keep-Alive timeout: " + element.getValue());
+          }
+        }
+      }
+
+      return _maxKeepAlive;
+    }
+  }
+
+  /**
+   * Thread that periodically closes connections that have expired (per the
+   * keep-alive strategy) or have been idle too long. This only holds a weak
+   * reference to the connection manager, so it quietly goes away if the
+   * fetcher is never aborted.
+   */
+  private static class IdleConnectionReaper extends Thread {
+    private final WeakReference<ClientConnectionManager> _connManager;
+    private final long _idleTimeout;
+    private volatile boolean _shutdown;
+
+    public IdleConnectionReaper(ClientConnectionManager connManager, long idleTimeout) {
+      super("IdleConnectionReaper");
+      setDaemon(true);
+
+      _connManager = new WeakReference<ClientConnectionManager>(connManager);
+      _idleTimeout = idleTimeout;
+      _shutdown = false;
+    }
+
+    @Override
+    public void run() {
+      while (!_shutdown) {
+        try {
+          Thread.sleep(CONNECTION_REAPER_INTERVAL);
+        } catch (InterruptedException e) {
+          break;
+        }
+
+        ClientConnectionManager connManager = _connManager.get();
+        if (connManager == null) {
+          break;
+        }
+
+        try {
+          connManager.closeExpiredConnections();
+          connManager.closeIdleConnections(_idleTimeout, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+          LOGGER.warn("Exception while closing idle connections", e);
+        }
+      }
+    }
+
+    public void shutdown() {
+      _shutdown = true;
+      interrupt();
+    }
+  }
+
+  /**
+   * Thread that checks the response rate and deadline of all active requests,
+   * and aborts any that are too slow. Checking the rate after each read (as
+   * doRequest() does) misses servers that trickle data, or stop sending, since
+   * then the read blocks until the socket timeout. Aborting the request closes
+   * the connection, which frees up the blocked thread.
+   */
+  private static class FetchWatchdog extends Thread {
+    private final WeakReference<Set<ActiveRequest>> _activeRequests;
+    private final FetcherPolicy _fetcherPolicy;
+    private volatile boolean _shutdown;
+
+    public FetchWatchdog(Set<ActiveRequest> activeRequests, FetcherPolicy fetcherPolicy) {
+      super("FetchWatchdog");
+      setDaemon(true);
+
+      _activeRequests = new WeakReference<Set<ActiveRequest>>(activeRequests);
+      _fetcherPolicy = fetcherPolicy;
+      _shutdown = false;
+    }
+
+    @Override
+    public void run() {
+      while (!_shutdown) {
+        try {
+          Thread.sleep(WATCHDOG_INTERVAL);
+        } catch (InterruptedException e) {
+          break;
+        }
+
+        Set<ActiveRequest> activeRequests = _activeRequests.get();
+        if (activeRequests == null) {
+          break;
+        }
+
+        int minResponseRate = _fetcherPolicy.getMinResponseRate();
+        long now = System.currentTimeMillis();
+        for (ActiveRequest activeRequest : activeRequests) {
+          if (!activeRequest.abortIfPastDeadline(now) && (minResponseRate > 0)) {
+            activeRequest.abortIfSlow(now, minResponseRate);
+          }
+        }
+      }
+    }
+
+    public void shutdown() {
+      _shutdown = true;
+      interrupt();
     }
   }
 
@@ -322,6 +872,8 @@ public class SimpleHttpFetcher extends BaseFetcher {
     _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
     _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
     _maxRetryCount = DEFAULT_MAX_RETRY_COUNT;
+    _acceptCompressed = false;
+    _idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
 
     // Just to be explicit, we rely on lazy initialization of this so that
     // we don't have to worry about serializing it.
@@ -364,6 +916,135 @@ public class SimpleHttpFetcher extends BaseFetcher {
     }
   }
 
+  public CachingHostResolver getHostResolver() {
+    return _hostResolver;
+  }
+
+  /**
+   * Set the resolver used for all connections. By default each fetcher creates
+   * its own CachingHostResolver, but fetchers can share one.
+   * 
+   * @param hostResolver
+   */
+  public void setHostResolver(CachingHostResolver hostResolver) {
+    if (_httpClient == null) {
+      _hostResolver = hostResolver;
+    } else {
+      throw new IllegalStateException("Can't change host resolver after HttpClient has been initialized");
+    }
+  }
+
+  /**
+   * Resolve all of <hostnames> in parallel, so fetches don't have to wait on
+   * DNS, and fetches of unknown hosts can be skipped.
+   * 
+   * @param hostnames
+   * @return hostnames that couldn't be resolved.
+   */
+  public Set<String> preResolve(Collection<String> hostnames) {
+    init();
+    return _hostResolver.preResolve(hostnames);
+  }
+
+  /**
+   * @param hostname
+   * @return true if we've already failed to resolve <hostname>.
+   */
+  public boolean isUnknownHost(String hostname) {
+    return (hostname != null) && (_hostResolver != null) && _hostResolver.isUnknownHost(hostname);
+  }
+
+  /**
+   * Start resolving <hostname> in the background, without waiting for it.
+   *
+   * @param hostname
+   */
+  public void resolveAsync(String hostname) {
+    init();
+    _hostResolver.resolveAsync(hostname);
+  }
+
+  /**
+   * @param hostname
+   * @return true if a lookup of <hostname> has completed (successfully or
+   *         not), so fetching from it won't wait on DNS.
+   */
+  public boolean isResolved(String hostname) {
+    return (_hostResolver == null) || _hostResolver.isResolved(hostname);
+  }
+
+  public HostConnectionLimits getConnectionLimits() {
+    return _connectionLimits;
+  }
+
+  /**
+   * Set the max connections per host. By default every host gets the fetcher
+   * policy's max connections per host. The limits can be changed at any time.
+   * 
+   * @param connectionLimits
+   */
+  public void setConnectionLimits(HostConnectionLimits connectionLimits) {
+    if (_httpClient == null) {
+      _connectionLimits = connectionLimits;
+    } else {
+      throw new IllegalStateException("Can't change connection limits after HttpClient has been initialized");
+    }
+  }
+
+  /**
+   * @param host
+   * @return max number of connections we'll make to <host>.
+   */
+  public int getMaxConnectionsPerHost(String host) {
+    init();
+    return _connectionLimits.getLimit(host);
+  }
+
+  public int getIdleConnectionTimeout() {
+    return _idleConnectionTimeout;
+  }
+
+  /**
+   * Set how long a connection can sit unused before it's closed. This is also
+   * the max time we'll keep a connection alive, even if the server says it's
+   * OK to keep it around for longer.
+   * 
+   * @param idleConnectionTimeoutInMs
+   */
+  public void setIdleConnectionTimeout(int idleConnectionTimeoutInMs) {
+    if (_httpClient == null) {
+      _idleConnectionTimeout = idleConnectionTimeoutInMs;
+    } else {
+      throw new IllegalStateException("Can't change idle connection timeout after HttpClient has been initialized");
+    }
+  }
+
+  /**
+   * @return current state of the connection pool, or null if nothing has been
+   *         fetched yet.
+   */
+  public PoolStats getPoolStats() {
+    DefaultHttpClient httpClient = _httpClient;
+    if (httpClient == null) {
+      return null;
+    }
+
+    return ((TrackingConnManager) httpClient.getConnectionManager()).getTotalStats();
+  }
+
+  /**
+   * @return current state of the connection pool for each route (host) that
+   *         has open connections, or requests waiting for one.
+   */
+  public Map<HttpRoute, PoolStats> getRoutePoolStats() {
+    DefaultHttpClient httpClient = _httpClient;
+    if (httpClient == null) {
+      return Collections.emptyMap();
+    }
+
+    return ((TrackingConnManager) httpClient.getConnectionManager()).getRouteStats();
+  }
+
   public int getMaxRetryCount() {
     return _maxRetryCount;
   }
@@ -371,15 +1052,157 @@ public class SimpleHttpFetcher extends BaseFetcher {
   public void setMaxRetryCount(int maxRetryCount) {
     _maxRetryCount = maxRetryCount;
   }
+
+  public boolean isAcceptCompressed() {
+    return _acceptCompressed;
+  }
+
+  /**
+   * Ask servers for gzip or deflate compressed responses, which are decoded as
+   * they're read. The max content size applies to both the number of bytes on
+   * the wire and the decoded size, and the response rate is measured using
+   * the slower of the two. The response headers are returned unchanged, so
+   * they still describe the compressed body.
+   * 
+   * @param acceptCompressed
+   */
+  public void setAcceptCompressed(boolean acceptCompressed) {
+    if (_httpClient == null) {
+      _acceptCompressed = acceptCompressed;
+    } else {
+      throw new IllegalStateException("Can't change compression support after HttpClient has been initialized");
+    }
+  }
   
+  public ValidatorStore getValidatorStore() {
+    return _validatorStore;
+  }
+
+  /**
+   * Use <validatorStore> to make GET requests conditional. The ETag and
+   * Last-Modified date from each response are saved, and used for the
+   * If-None-Match and If-Modified-Since headers of the next request for the
+   * same URL. If the server says the content hasn't changed, the result has
+   * no content, and FetchedResult.isNotModified() returns true.
+   * 
+   * @param validatorStore
+   */
+  public void setValidatorStore(ValidatorStore validatorStore) {
+    _validatorStore = validatorStore;
+  }
+
+  public DiskResponseCache getResponseCache() {
+    return _responseCache;
+  }
+
+  /**
+   * Use <responseCache> for plain GET requests (no extra headers, and no body
+   * handler). Cached results are returned without going to the server, and
+   * complete (not truncated) results are added to the cache if their headers
+   * allow it.
+   * 
+   * @param responseCache
+   */
+  public void setResponseCache(DiskResponseCache responseCache) {
+    _responseCache = responseCache;
+  }
+
+  public HostCircuitBreaker getCircuitBreaker() {
+    return _circuitBreaker;
+  }
+
+  /**
+   * Use <circuitBreaker> to fail fast (with AbortedFetchReason.HOST_UNAVAILABLE)
+   * when a host keeps failing, versus making every request for it wait for
+   * a connect or socket timeout.
+   * 
+   * @param circuitBreaker
+   */
+  public void setCircuitBreaker(HostCircuitBreaker circuitBreaker) {
+    _circuitBreaker = circuitBreaker;
+  }
+
+  public RedirectCache getRedirectCache() {
+    return _redirectCache;
+  }
+
+  /**
+   * Use <redirectCache> to remember permanent redirects, so that the next
+   * fetch of a URL that has moved is made directly to where it moved to. The
+   * result's base URL is still the URL that was asked for, and its new base
+   * URL is where it moved to. This is only used when the redirect mode is
+   * FOLLOW_ALL, since otherwise the caller wants to know about permanent
+   * redirects.
+   * 
+   * @param redirectCache
+   */
+  public void setRedirectCache(RedirectCache redirectCache) {
+    _redirectCache = redirectCache;
+  }
+
   public FetchedResult get(String url) throws BaseFetchException {
     return get(url, null);
   }
 
   public FetchedResult get(String url, List<Tuple2<?,?>> headers) throws BaseFetchException {
+    return get(url, headers, null);
+  }
+
+  /**
+   * Fetch <url>, passing the body to <bodyHandler> as it's read. The max content
+   * size and min response rate checks still apply, but the returned result has
+   * no content - only the metadata, and the number of bytes that were handled.
+   * 
+   * @param url
+   * @param bodyHandler
+   * @return result without content
+   * @throws BaseFetchException
+   */
+  public FetchedResult fetch(String url, BodyHandler bodyHandler) throws BaseFetchException {
+    return get(url, null, bodyHandler);
+  }
+
+  public FetchedResult get(String url, List<Tuple2<?,?>> headers, BodyHandler bodyHandler) throws BaseFetchException {
     HttpRequestBase request = new HttpGet();
     request.setHeader("User-Agent", _userAgent.getUserAgentString());
-    return fetch(request, url, null, headers);
+    return fetch(request, url, null, headers, bodyHandler);
+  }
+
+  public FetchedResult getToFile(String url, File file) throws BaseFetchException {
+    return getToFile(url, null, file);
+  }
+
+  /**
+   * Fetch <url>, writing the body directly to <file> (which is replaced, if it
+   * exists) as it's read. The max content size and min response rate checks
+   * work the same as for get(), and if the fetch fails then the file is
+   * deleted. The returned result has no content, but references the file.
+   * 
+   * @param url
+   * @param headers
+   * @param file
+   * @return result with content file and length
+   * @throws BaseFetchException
+   */
+  public FetchedResult getToFile(String url, List<Tuple2<?,?>> headers, File file) throws BaseFetchException {
+    FileChannel channel = null;
+    boolean success = false;
+
+    try {
+      channel = new FileOutputStream(file).getChannel();
+      FetchedResult result = get(url, headers, new FileBodyHandler(channel));
+      channel.close();
+      success = true;
+      return new FetchedResult(result, file);
+    } catch (IOException e) {
+      throw new IOFetchException(url, e);
+    } finally {
+      safeClose(channel);
+
+      if (!success) {
+        file.delete();
+      }
+    }
   }
   
   public FetchedResult post(String url, List<Tuple2<?,?>> data) throws BaseFetchException {
@@ -392,20 +1215,147 @@ public class SimpleHttpFetcher extends BaseFetcher {
     return fetch(request, url, data, headers);
   }
 
+  public Iterator<FetchOutcome> fetchAll(Iterable<String> urls) {
+    return fetchAll(urls, null);
+  }
+
+  /**
+   * Fetch all of <urls>, running up to getMaxThreads() fetches in parallel.
+   * Outcomes are returned in completion order (not input order). URLs are
+   * pulled from <urls> only as earlier fetches complete, so memory use stays
+   * bounded even for very large inputs.
+   * 
+   * @param urls
+   * @param headers
+   *          Optional extra request headers, or null.
+   * @return iterator over the outcome for each URL
+   */
+  public Iterator<FetchOutcome> fetchAll(Iterable<String> urls, List<Tuple2<?,?>> headers) {
+    return new FetchAllIterator(urls.iterator(), headers);
+  }
+
   public FetchedResult fetch(HttpRequestBase request, String url, List<Tuple2<?,?>> data, List<Tuple2<?,?>> headers) throws BaseFetchException {
+    return fetch(request, url, data, headers, null);
+  }
+
+  public FetchedResult fetch(HttpRequestBase request, String url, List<Tuple2<?,?>> data, List<Tuple2<?,?>> headers, BodyHandler bodyHandler)
+      throws BaseFetchException {
+    return fetch(request, url, data, headers, bodyHandler, NO_DEADLINE);
+  }
+
+  /**
+   * Fetch <url>, giving up if it's not done by <deadline>. The fetcher
+   * policy's max fetch time and crawl end time also apply, so the earliest of
+   * these wins. The deadline covers everything - connecting, redirects,
+   * retries and reading the content - and if we run out of time, the fetch
+   * is aborted with AbortedFetchReason.TIME_LIMIT.
+   * 
+   * @param request
+   * @param url
+   * @param data
+   * @param headers
+   * @param bodyHandler
+   * @param deadline
+   *          time in milliseconds, or NO_DEADLINE
+   * @return result
+   * @throws BaseFetchException
+   */
+  public FetchedResult fetch(HttpRequestBase request, String url, List<Tuple2<?,?>> data, List<Tuple2<?,?>> headers, BodyHandler bodyHandler,
+      long deadline) throws BaseFetchException {
+    if (_aborted) {
+      throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+    }
+
+    boolean useCache = (_responseCache != null) && (request instanceof HttpGet) && (headers == null) && (bodyHandler == null);
+    if (useCache) {
+      FetchedResult result = _responseCache.get(url);
+      if (result != null) {
+        return result;
+      }
+    }
+
+    long now = System.currentTimeMillis();
+    deadline = Math.min(deadline, _fetcherPolicy.getFetchDeadline(now));
+    if (now >= deadline) {
+      throw new AbortedFetchException(url, AbortedFetchReason.TIME_LIMIT);
+    }
+
+    // Skip any permanent redirects we already know about.
+    RedirectCache redirectCache = (_fetcherPolicy.getRedirectMode() == RedirectMode.FOLLOW_ALL) ? _redirectCache : null;
+    String requestUrl = (redirectCache == null) ? null : redirectCache.getTarget(url);
+    if (requestUrl == null) {
+      requestUrl = url;
+    }
+
+    HostCircuitBreaker circuitBreaker = _circuitBreaker;
+    String host = (circuitBreaker == null) ? null : UrlNormalizer.getHost(requestUrl);
+    if ((host != null) && !circuitBreaker.allowRequest(host)) {
+      throw new AbortedFetchException(url, "Circuit breaker is open for " + host, AbortedFetchReason.HOST_UNAVAILABLE);
+    }
+
     init();
 
+    // Register the request before (re)checking for an abort, so that either
+    // abort() sees it, or we see that abort() was called - otherwise we could
+    // run against a connection manager that's been shut down.
+    ActiveRequest activeRequest = new ActiveRequest(request, deadline);
+    _activeRequests.add(activeRequest);
+
     try {
-      return doRequest(request, url, data, headers);
+      if (_aborted) {
+        throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+      }
+
+      FetchedResult result = doRequest(request, url, requestUrl, data, headers, bodyHandler, activeRequest, redirectCache);
+
+      // If we got max content size bytes, assume it's been truncated.
+      if (useCache && !result.isNotModified() && (result.getContentLength() < _fetcherPolicy.getMaxContentSize())) {
+        _responseCache.put(result);
+      }
+
+      if (host != null) {
+        circuitBreaker.onSuccess(host);
+      }
+
+      return result;
     } catch (BaseFetchException e) {
+      BaseFetchException result = e;
+      boolean aborted = (activeRequest.getAbortReason() != null) || _aborted;
+      if (activeRequest.getAbortReason() != null) {
+        result = new AbortedFetchException(url, activeRequest.getAbortReason());
+      } else if (_aborted) {
+        // Whatever went wrong (e.g. the connection manager being shut down
+        // under us) was because of the abort.
+        result = new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+      } else if ((e instanceof IOFetchException) && activeRequest.isPastDeadline(System.currentTimeMillis())) {
+        // We cut short a connect, read, retry or redirect because we ran out
+        // of time, before the watchdog noticed.
+        result = new AbortedFetchException(url, AbortedFetchReason.TIME_LIMIT);
+      }
+
+      if (host != null) {
+        // Use the original exception if we ran out of time, since not being
+        // able to connect before the deadline still counts against the host.
+        circuitBreaker.onFailure(host, aborted ? result : e);
+      }
+
+      if ((requestUrl != url) && !(result instanceof AbortedFetchException)) {
+        // Where it moved to might not work any more (or might redirect back
+        // to the original URL), so go back to the original URL next time.
+        redirectCache.remove(url);
+      }
+
       if (LOGGER.isTraceEnabled()) {
         LOGGER.trace(String.format("Exception fetching %s", url), e);
       }
-      throw e;
+      throw result;
+    } finally {
+      _activeRequests.remove(activeRequest);
     }
   }
 
-  private FetchedResult doRequest(HttpRequestBase request, String url, List<Tuple2<?,?>> data, List<Tuple2<?,?>> headers) throws BaseFetchException {
+  private FetchedResult doRequest(HttpRequestBase request, String url, String requestUrl, List<Tuple2<?,?>> data, List<Tuple2<?,?>> headers,
+      BodyHandler bodyHandler, ActiveRequest activeRequest, RedirectCache redirectCache) throws BaseFetchException {
     LOGGER.trace("Fetching " + url);
 
     HttpResponse response;
@@ -415,6 +1365,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
     String newBaseUrl = null;
     int numRedirects = 0;
     boolean needAbort = true;
+    boolean notModified = false;
     String contentType = "";
     String hostAddress = null;
 
@@ -425,8 +1376,13 @@ public class SimpleHttpFetcher extends BaseFetcher {
     CookieStore cookieStore = new BasicCookieStore();
     localContext.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
 
+    long deadline = activeRequest.getDeadline();
+    if (deadline != NO_DEADLINE) {
+      localContext.setAttribute(DEADLINE_CONTEXT_KEY, deadline);
+    }
+
     try {
-      URI uri = new URI(url);
+      URI uri = new URI(requestUrl);
       request.setURI(uri);
       request.setHeader("Host", uri.getHost());
       
@@ -435,6 +1391,10 @@ public class SimpleHttpFetcher extends BaseFetcher {
           request.setHeader(t.getKey().toString(),t.getValue().toString());
         }
       }
+
+      if ((_validatorStore != null) && (request instanceof HttpGet)) {
+        addConditionalHeaders(request, url);
+      }
       
       //collect post data if available
       if (request instanceof HttpPost && data != null) {
@@ -445,6 +1405,17 @@ public class SimpleHttpFetcher extends BaseFetcher {
         ((HttpPost)(request)).setEntity(new UrlEncodedFormEntity(nameValuePairs));
       }
 
+      checkConnectionLimits();
+
+      // Don't let a connect run past the deadline. Once we're connected, the
+      // request interceptor takes care of the socket timeout.
+      if (deadline != NO_DEADLINE) {
+        long remaining = Math.max(1, deadline - System.currentTimeMillis());
+        if ((_connectionTimeout == 0) || (remaining < _connectionTimeout)) {
+          HttpConnectionParams.setConnectionTimeout(request.getParams(), (int) remaining);
+        }
+      }
+
       readStartTime = System.currentTimeMillis();
       response = _httpClient.execute(request, localContext);
 
@@ -454,7 +1425,11 @@ public class SimpleHttpFetcher extends BaseFetcher {
       }
 
       int httpStatus = response.getStatusLine().getStatusCode();
-      if ((httpStatus < 200) || (httpStatus >= 300)) {
+      if (httpStatus == HttpStatus.SC_NOT_MODIFIED) {
+        // Response to a conditional request, which we return as a result
+        // without content.
+        notModified = true;
+      } else if ((httpStatus < 200) || (httpStatus >= 300)) {
         // We can't just check against SC_OK, as some wackos return 201, 202,
         // etc
         throw new HttpFetchException(url, "Error fetching " + url + " due to http status code "+httpStatus, httpStatus, headerMap);
@@ -465,6 +1440,14 @@ public class SimpleHttpFetcher extends BaseFetcher {
       URI permRedirectUri = (URI) localContext.getAttribute(PERM_REDIRECT_CONTEXT_KEY);
       if (permRedirectUri != null) {
         newBaseUrl = permRedirectUri.toURL().toExternalForm();
+      } else if (requestUrl != url) {
+        // We skipped the permanent redirect(s) to get here.
+        newBaseUrl = requestUrl;
+      }
+
+      URI permTargetUri = (URI) localContext.getAttribute(PERM_TARGET_CONTEXT_KEY);
+      if ((redirectCache != null) && (permTargetUri != null)) {
+        redirectCache.put(url, permTargetUri.toString());
       }
 
       Integer redirects = (Integer) localContext.getAttribute(REDIRECT_COUNT_CONTEXT_KEY);
@@ -482,6 +1465,13 @@ public class SimpleHttpFetcher extends BaseFetcher {
         contentType = cth.getValue();
       }
 
+      // Bail out before we read any of the body, if it's something we don't
+      // want. We still need to abort the request, so the (possibly huge) body
+      // isn't read when the connection is released.
+      if (!notModified && !_fetcherPolicy.isValidMimeType(contentType)) {
+        throw new AbortedFetchException(url, "Invalid mime-type: " + contentType, AbortedFetchReason.INVALID_MIMETYPE);
+      }
+
       needAbort = false;
     } catch (ClientProtocolException e) {
       // Oleg guarantees that no abort is needed in the case of an IOException
@@ -514,11 +1504,10 @@ public class SimpleHttpFetcher extends BaseFetcher {
       if (e instanceof ConnectionPoolTimeoutException) {
         // Should never happen, so let's dump some info about the connection
         // pool.
-        ThreadSafeClientConnManager cm = (ThreadSafeClientConnManager) _httpClient.getConnectionManager();
-        int numConnections = cm.getConnectionsInPool();
+        TrackingConnManager cm = (TrackingConnManager) _httpClient.getConnectionManager();
+        PoolStats stats = cm.getTotalStats();
         cm.closeIdleConnections(0, TimeUnit.MILLISECONDS);
-        LOGGER
-            .error(String.format("Got ConnectionPoolTimeoutException: %d connections before, %d after idle close", numConnections, cm.getConnectionsInPool()));
+        LOGGER.error(String.format("Got ConnectionPoolTimeoutException: %s before, %d connections after idle close", stats, cm.getConnectionsInPool()));
       }
 
       throw new IOFetchException(url, e);
@@ -536,18 +1525,32 @@ public class SimpleHttpFetcher extends BaseFetcher {
       safeAbort(needAbort, request);
     }
 
+    if (notModified) {
+      // There's no body for a 304 response, so we're done.
+      saveValidators(request, url, headerMap, true);
+      return new FetchedResult(url, redirectedUrl, System.currentTimeMillis(), headerMap, newBaseUrl, numRedirects, hostAddress);
+    }
+
+    // If the body is compressed, we'll be decoding it as we read, and the
+    // content length (if any) is only the number of bytes on the wire.
+    String contentEncoding = _acceptCompressed ? getContentEncoding(headerMap) : null;
+
     // Figure out how much data we want to try to fetch.
-    int targetLength = _fetcherPolicy.getMaxContentSize();
+    int maxContentSize = _fetcherPolicy.getMaxContentSize();
+    int targetLength = maxContentSize;
     boolean truncated = false;
+    boolean lengthKnown = false;
     String contentLengthStr = headerMap.getFirst(HttpHeaderNames.CONTENT_LENGTH);
     if (contentLengthStr != null) {
       try {
         int contentLength = Integer.parseInt(contentLengthStr);
-        if (contentLength > targetLength) {
+        if (contentLength > maxContentSize) {
           truncated = true;
-        } else {
+        } else if (contentEncoding == null) {
           targetLength = contentLength;
         }
+
+        lengthKnown = (contentEncoding == null);
       } catch (NumberFormatException e) {
         // Ignore (and log) invalid content length values.
         LOGGER.warn("Invalid content length in header: " + contentLengthStr);
@@ -556,37 +1559,71 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
     // Now finally read in response body, up to targetLength bytes.
     // Note that entity might be null, for zero length responses.
-    byte[] content = new byte[0];
+    // If the caller didn't provide a handler for the body, we collect it
+    // as the result's content.
+    ContentCollector collector = null;
+    if (bodyHandler == null) {
+      collector = new ContentCollector(_bufferPool, lengthKnown ? targetLength : -1);
+      bodyHandler = collector;
+    }
+
     long readRate = 0;
+    int totalRead = 0;
+    int wireRead = 0;
     HttpEntity entity = response.getEntity();
     needAbort = true;
 
     if (entity != null) {
       InputStream in = null;
+      byte[] buffer = _bufferPool.acquire();
+      boolean bodyRead = false;
+      activeRequest.startReading(readStartTime);
 
       try {
-        in = entity.getContent();
-        byte[] buffer = new byte[BUFFER_SIZE];
+        CountingInputStream wireIn = new CountingInputStream(entity.getContent());
+        in = wireIn;
+        if (contentEncoding != null) {
+          in = makeDecodingStream(wireIn, contentEncoding);
+        }
+
+        ByteBuffer chunk = ByteBuffer.wrap(buffer);
         int bytesRead = 0;
-        int totalRead = 0;
-        ByteArrayOutputStream out = new ByteArrayOutputStream(DEFAULT_BYTEARRAY_SIZE);
 
         int readRequests = 0;
         int minResponseRate = _fetcherPolicy.getMinResponseRate();
-        // TODO KKr - we need to monitor the rate while reading a
-        // single block. Look at HttpClient
-        // metrics support for how to do this. Once we fix this, fix
-        // the test to read a smaller (< 20K)
-        // chuck of data.
-        while ((totalRead < targetLength) && ((bytesRead = in.read(buffer, 0, Math.min(buffer.length, targetLength - totalRead))) != -1)) {
+        boolean sniffContentType = _fetcherPolicy.isSniffContentType() && !_fetcherPolicy.getValidMimeTypes().isEmpty();
+        // We check the rate after each read, but a read can block for a long
+        // time, so the watchdog thread also checks it while we're waiting.
+        while ((totalRead < targetLength) && (wireRead < maxContentSize)
+            && ((bytesRead = in.read(buffer, 0, Math.min(buffer.length, targetLength - totalRead))) != -1)) {
           readRequests += 1;
           totalRead += bytesRead;
-          out.write(buffer, 0, bytesRead);
+          wireRead = (int) wireIn.getByteCount();
+          activeRequest.setBytesRead(Math.min(totalRead, wireRead));
+
+          // The Content-Type header can be missing or wrong, so (if requested)
+          // double-check using the first bytes of the content.
+          if (sniffContentType && (readRequests == 1)) {
+            String sniffedType = MimeTypeSniffer.sniff(buffer, bytesRead);
+            if ((sniffedType != null) && !_fetcherPolicy.isValidMimeType(sniffedType)) {
+              throw new AbortedFetchException(url, "Invalid mime-type (from content): " + sniffedType, AbortedFetchReason.INVALID_MIMETYPE);
+            }
+          }
+
+          chunk.clear();
+          chunk.limit(bytesRead);
+          bodyHandler.onContent(chunk);
 
           // Assume read time is at least one millisecond, to avoid DBZ
-          // exception.
-          long totalReadTime = Math.max(1, System.currentTimeMillis() - readStartTime);
-          readRate = (totalRead * 1000L) / totalReadTime;
+          // exception. Use the slower of the wire and decoded rates, which
+          // are the same unless the body is compressed.
+          long now = System.currentTimeMillis();
+          long totalReadTime = Math.max(1, now - readStartTime);
+          readRate = (Math.min(totalRead, wireRead) * 1000L) / totalReadTime;
+
+          if ((totalRead < targetLength) && activeRequest.isPastDeadline(now)) {
+            throw new AbortedFetchException(url, "Fetch deadline exceeded while reading content", AbortedFetchReason.TIME_LIMIT);
+          }
 
           // Don't bail on the first read cycle, as we can get a hiccup starting
           // out.
@@ -601,19 +1638,138 @@ public class SimpleHttpFetcher extends BaseFetcher {
           }
         }
 
-        content = out.toByteArray();
-        needAbort = truncated || (in.available() > 0);
+        // A decoding stream says more is available until it hits the end, so
+        // for compressed bodies we check whether we stopped at a limit.
+        if (contentEncoding == null) {
+          needAbort = truncated || (in.available() > 0);
+        } else {
+          needAbort = (bytesRead != -1) || (wireIn.available() > 0);
+        }
+
+        bodyRead = true;
       } catch (IOException e) {
         // We don't need to abort if there's an IOException
         throw new IOFetchException(url, e);
       } finally {
+        activeRequest.doneReading();
         safeAbort(needAbort, request);
         safeClose(in);
+        _bufferPool.release(buffer);
+
+        // A truncated body is still returned, so we only give the blocks back
+        // if we're bailing out with an exception.
+        if (!bodyRead && (collector != null)) {
+          collector.release();
+        }
       }
     }
 
-    return new FetchedResult(url, redirectedUrl, System.currentTimeMillis(), headerMap, content, contentType, (int) readRate, newBaseUrl,
-        numRedirects, hostAddress);
+    saveValidators(request, url, headerMap, false);
+
+    byte[] content = (collector == null) ? new byte[0] : collector.getContent();
+    return new FetchedResult(url, redirectedUrl, System.currentTimeMillis(), headerMap, content, totalRead, wireRead, contentType, (int) readRate,
+        newBaseUrl, numRedirects, hostAddress);
+  }
+
+  /**
+   * @param headerMap
+   * @return "gzip" or "deflate" if the body uses one of the encodings we can
+   * decode, otherwise null.
+   */
+  private static String getContentEncoding(HttpHeaders headerMap) {
+    String encoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
+    if (encoding == null) {
+      return null;
+    }
+
+    encoding = encoding.trim().toLowerCase();
+    if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+      return "gzip";
+    } else if (encoding.equals("deflate")) {
+      return "deflate";
+    } else {
+      return null;
+    }
+  }
+
+  private static InputStream makeDecodingStream(InputStream in, String encoding) throws IOException {
+    if (encoding.equals("gzip")) {
+      return new GZIPInputStream(in);
+    }
+
+    // "deflate" is supposed to be zlib-wrapped, but some servers send raw
+    // deflate data, so check for a zlib header (CM = 8, and the first two
+    // bytes are a multiple of 31).
+    PushbackInputStream pushback = new PushbackInputStream(in, 2);
+    int b0 = pushback.read();
+    int b1 = (b0 == -1) ? -1 : pushback.read();
+    if (b1 != -1) {
+      pushback.unread(b1);
+    }
+
+    if (b0 != -1) {
+      pushback.unread(b0);
+    }
+
+    boolean zlibWrapped = (b1 != -1) && ((b0 & 0x0F) == 8) && ((((b0 << 8) | b1) % 31) == 0);
+    return new InflaterInputStream(pushback, new Inflater(!zlibWrapped));
+  }
+
+  private void addConditionalHeaders(HttpRequestBase request, String url) {
+    if (request.containsHeader(HttpHeaderNames.IF_NONE_MATCH) || request.containsHeader(HttpHeaderNames.IF_MODIFIED_SINCE)) {
+      // Caller is doing their own conditional request.
+      return;
+    }
+
+    ValidatorStore.Validators validators;
+    try {
+      validators = _validatorStore.get(url);
+    } catch (IOException e) {
+      LOGGER.warn("Can't read validators for " + url, e);
+      return;
+    }
+
+    if (validators != null) {
+      if (validators.getETag() != null) {
+        request.setHeader(HttpHeaderNames.IF_NONE_MATCH, validators.getETag());
+      }
+
+      if (validators.getLastModified() != ValidatorStore.NO_LAST_MODIFIED) {
+        request.setHeader(HttpHeaderNames.IF_MODIFIED_SINCE, DateUtils.formatDate(new Date(validators.getLastModified())));
+      }
+    }
+  }
+
+  /**
+   * Save the validators from the response for the next fetch of <url>. A 304
+   * response doesn't have to include them, in which case we keep the ones we've
+   * got.
+   */
+  private void saveValidators(HttpRequestBase request, String url, HttpHeaders headerMap, boolean notModified) {
+    if ((_validatorStore == null) || !(request instanceof HttpGet)) {
+      return;
+    }
+
+    String etag = headerMap.getFirst(HttpHeaderNames.ETAG);
+    long lastModified = ValidatorStore.NO_LAST_MODIFIED;
+    String lastModifiedStr = headerMap.getFirst(HttpHeaderNames.LAST_MODIFIED);
+    if (lastModifiedStr != null) {
+      try {
+        lastModified = DateUtils.parseDate(lastModifiedStr).getTime();
+      } catch (DateParseException e) {
+        LOGGER.debug("Invalid last modified date in header: " + lastModifiedStr);
+      }
+    }
+
+    if (notModified && (etag == null) && (lastModified == ValidatorStore.NO_LAST_MODIFIED)) {
+      return;
+    }
+
+    try {
+      _validatorStore.put(url, etag, lastModified);
+    } catch (IOException e) {
+      LOGGER.warn("Can't save validators for " + url, e);
+    }
   }
 
   private String extractRedirectedUrl(String url, HttpContext localContext) {
@@ -621,16 +1777,37 @@ public class SimpleHttpFetcher extends BaseFetcher {
     HttpHost host = (HttpHost) localContext.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
     HttpUriRequest finalRequest = (HttpUriRequest) localContext.getAttribute(ExecutionContext.HTTP_REQUEST);
 
-    try {
-      URL hostUrl = new URI(host.toURI()).toURL();
-      return new URL(hostUrl, finalRequest.getURI().toString()).toExternalForm();
-    } catch (MalformedURLException e) {
-      LOGGER.warn("Invalid host/uri specified in final fetch: " + host + finalRequest.getURI());
-      return url;
-    } catch (URISyntaxException e) {
+    // The final request's URI is normally relative to the target host.
+    String target = finalRequest.getURI().toString();
+    if (!finalRequest.getURI().isAbsolute()) {
+      target = host.toURI() + (target.startsWith("/") ? "" : "/") + target;
+    }
+
+    String result = UrlNormalizer.normalize(target);
+    if (result == null) {
       LOGGER.warn("Invalid host/uri specified in final fetch: " + host + finalRequest.getURI());
       return url;
     }
+
+    return result;
+  }
+
+  /**
+   * The limit for a host only gets used when its connection pool is created,
+   * so if the limits have changed, close idle connections. That gets rid of
+   * the pools for idle hosts, which are then re-created with the new limit.
+   */
+  private void checkConnectionLimits() {
+    int version = _connectionLimits.getVersion();
+    if (version != _connectionLimitsVersion) {
+      _connectionLimitsVersion = version;
+      _httpClient.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static boolean isPastDeadline(HttpContext context) {
+    Long deadline = (Long) context.getAttribute(DEADLINE_CONTEXT_KEY);
+    return (deadline != null) && (System.currentTimeMillis() >= deadline);
   }
 
   private static void safeClose(Closeable o) {
@@ -653,8 +1830,42 @@ public class SimpleHttpFetcher extends BaseFetcher {
     }
   }
 
+  public BufferPool getBufferPool() {
+    return _bufferPool;
+  }
+
+  /**
+   * Set the pool used for body read buffers. By default each fetcher has its
+   * own pool, but fetchers can share one to put a cap on the total.
+   * 
+   * @param bufferPool
+   */
+  public void setBufferPool(BufferPool bufferPool) {
+    if (_httpClient == null) {
+      _bufferPool = bufferPool;
+    } else {
+      throw new IllegalStateException("Can't change buffer pool after HttpClient has been initialized");
+    }
+  }
+
   private synchronized void init() {
     if (_httpClient == null) {
+      if (_bufferPool == null) {
+        _bufferPool = new BufferPool();
+      }
+
+      if (_hostResolver == null) {
+        _hostResolver = new CachingHostResolver();
+      }
+
+      if (_connectionLimits == null) {
+        _connectionLimits = new HostConnectionLimits(_fetcherPolicy.getMaxConnectionsPerHost());
+      }
+
+      _connectionLimitsVersion = _connectionLimits.getVersion();
+
+      _activeRequests = Collections.newSetFromMap(new ConcurrentHashMap<ActiveRequest, Boolean>());
+
       // Create and initialize HTTP parameters
       HttpParams params = new BasicHttpParams();
 
@@ -682,12 +1893,9 @@ public class SimpleHttpFetcher extends BaseFetcher {
       // and disabling this check improves performance.
       HttpConnectionParams.setStaleCheckingEnabled(params, false);
 
-      // FUTURE - set this on a per-route (host) basis when we have per-host
-      // policies for
-      // doing partner crawls. We could define a BixoConnPerRoute class that
-      // supports this.
-      ConnPerRouteBean connPerRoute = new ConnPerRouteBean(_fetcherPolicy.getMaxConnectionsPerHost());
-      ConnManagerParams.setMaxConnectionsPerRoute(params, connPerRoute);
+      // Connection limits are set per route (host), so that partner crawls
+      // can use more connections.
+      ConnManagerParams.setMaxConnectionsPerRoute(params, _connectionLimits);
 
       HttpProtocolParams.setVersion(params, _httpVersion);
       HttpProtocolParams.setUserAgent(params, _userAgent.getUserAgentString());
@@ -701,14 +1909,14 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
       // Create and initialize scheme registry
       SchemeRegistry schemeRegistry = new SchemeRegistry();
-      schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+      schemeRegistry.register(new Scheme("http", new PlainSocketFactory(_hostResolver), 80));
       SSLSocketFactory sf = null;
 
       for (String contextName : SSL_CONTEXT_NAMES) {
         try {
           SSLContext sslContext = SSLContext.getInstance(contextName);
           sslContext.init(null, new TrustManager[]{new DummyX509TrustManager(null)}, null);
-          sf = new SSLSocketFactory(sslContext);
+          sf = new SSLSocketFactory(sslContext, _hostResolver);
           break;
         } catch (NoSuchAlgorithmException e) {
           LOGGER.debug("SSLContext algorithm not available: " + contextName);
@@ -725,9 +1933,10 @@ public class SimpleHttpFetcher extends BaseFetcher {
       }
 
       // Use ThreadSafeClientConnManager since more than one thread will be
-      // using the HttpClient.
-      ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, schemeRegistry);
+      // using the HttpClient. Our subclass also tracks per-route stats.
+      TrackingConnManager cm = new TrackingConnManager(params, schemeRegistry);
       _httpClient = new DefaultHttpClient(cm, params);
+      _httpClient.setKeepAliveStrategy(new MyKeepAliveStrategy(_idleConnectionTimeout));
       _httpClient.setHttpRequestRetryHandler(new MyRequestRetryHandler(_maxRetryCount));
       _httpClient.setRedirectHandler(new MyRedirectHandler(_fetcherPolicy.getRedirectMode()));
       _httpClient.addRequestInterceptor(new MyRequestInterceptor());
@@ -752,13 +1961,46 @@ public class SimpleHttpFetcher extends BaseFetcher {
       defaultHeaders.add(new BasicHeader(HttpHeaderNames.ACCEPT_CHARSET, DEFAULT_ACCEPT_CHARSET));
       defaultHeaders.add(new BasicHeader(HttpHeaderNames.ACCEPT, DEFAULT_ACCEPT));
 
+      if (_acceptCompressed) {
+        defaultHeaders.add(new BasicHeader(HttpHeaderNames.ACCEPT_ENCODING, DEFAULT_ACCEPT_ENCODING));
+      }
+
       clientParams.setDefaultHeaders(defaultHeaders);
+
+      // Since stale checking is disabled, get rid of connections before the
+      // server closes them, rather than finding out when we try to reuse them.
+      _connectionReaper = new IdleConnectionReaper(cm, _idleConnectionTimeout);
+      _connectionReaper.start();
+
+      _fetchWatchdog = new FetchWatchdog(_activeRequests, _fetcherPolicy);
+      _fetchWatchdog.start();
     }
   }
 
   @Override
   public void abort() {
-    // TODO Actually try to abort
+    _aborted = true;
+
+    Set<ActiveRequest> activeRequests = _activeRequests;
+    if (activeRequests != null) {
+      for (ActiveRequest activeRequest : activeRequests) {
+        activeRequest.abort(AbortedFetchReason.INTERRUPTED);
+      }
+    }
+
+    synchronized (this) {
+      if (_connectionReaper != null) {
+        _connectionReaper.shutdown();
+      }
+
+      if (_fetchWatchdog != null) {
+        _fetchWatchdog.shutdown();
+      }
+
+      if (_httpClient != null) {
+        _httpClient.getConnectionManager().shutdown();
+      }
+    }
   }
 
 }
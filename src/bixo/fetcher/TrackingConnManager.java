@@ -0,0 +1,209 @@
+package bixo.fetcher;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+/**
+ * ThreadSafeClientConnManager that keeps track of how many connections are
+ * leased, and how many requests are waiting for a connection, for each route,
+ * since HttpClient doesn't tell us that.
+ *
+ * Routes with no connections are dropped when idle connections are closed, so
+ * memory use is proportional to the number of active hosts.
+ */
+public class TrackingConnManager extends ThreadSafeClientConnManager {
+
+  private static class RouteCounts {
+    private int _leased = 0;
+    private int _pending = 0;
+  }
+
+  private final HttpParams _params;
+  private final Map<HttpRoute, RouteCounts> _routeCounts;
+  private final Map<ManagedClientConnection, HttpRoute> _leasedConnections;
+
+  public TrackingConnManager(HttpParams params, SchemeRegistry schemeRegistry) {
+    super(params, schemeRegistry);
+
+    _params = params;
+    _routeCounts = new HashMap<HttpRoute, RouteCounts>();
+    _leasedConnections = new HashMap<ManagedClientConnection, HttpRoute>();
+  }
+
+  @Override
+  public ClientConnectionRequest requestConnection(final HttpRoute route, Object state) {
+    final ClientConnectionRequest request = super.requestConnection(route, state);
+    connectionRequested(route);
+
+    return new ClientConnectionRequest() {
+      private boolean _done = false;
+
+      @Override
+      public ManagedClientConnection getConnection(long timeout, TimeUnit unit) throws InterruptedException, ConnectionPoolTimeoutException {
+        ManagedClientConnection conn = null;
+
+        try {
+          conn = request.getConnection(timeout, unit);
+          return conn;
+        } finally {
+          if (!_done) {
+            _done = true;
+            connectionLeased(route, conn);
+          }
+        }
+      }
+
+      @Override
+      public void abortRequest() {
+        request.abortRequest();
+      }
+    };
+  }
+
+  @Override
+  public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {
+    try {
+      super.releaseConnection(conn, validDuration, timeUnit);
+    } finally {
+      connectionReleased(conn);
+    }
+  }
+
+  @Override
+  public void closeIdleConnections(long idletime, TimeUnit tunit) {
+    super.closeIdleConnections(idletime, tunit);
+    removeUnusedRoutes();
+  }
+
+  @Override
+  public void shutdown() {
+    super.shutdown();
+
+    synchronized (_routeCounts) {
+      _routeCounts.clear();
+      _leasedConnections.clear();
+    }
+  }
+
+  /**
+   * @param route
+   * @return current stats for <route>.
+   */
+  public PoolStats getStats(HttpRoute route) {
+    int leased = 0;
+    int pending = 0;
+
+    synchronized (_routeCounts) {
+      RouteCounts counts = _routeCounts.get(route);
+      if (counts != null) {
+        leased = counts._leased;
+        pending = counts._pending;
+      }
+    }
+
+    int available = Math.max(0, getConnectionsInPool(route) - leased);
+    return new PoolStats(leased, available, pending, ConnManagerParams.getMaxConnectionsPerRoute(_params).getMaxForRoute(route));
+  }
+
+  /**
+   * @return current stats for every route that has connections, or requests
+   *         waiting for one.
+   */
+  public Map<HttpRoute, PoolStats> getRouteStats() {
+    HttpRoute[] routes;
+    synchronized (_routeCounts) {
+      routes = _routeCounts.keySet().toArray(new HttpRoute[_routeCounts.size()]);
+    }
+
+    Map<HttpRoute, PoolStats> result = new HashMap<HttpRoute, PoolStats>();
+    for (HttpRoute route : routes) {
+      result.put(route, getStats(route));
+    }
+
+    return result;
+  }
+
+  /**
+   * @return current stats for the whole pool.
+   */
+  public PoolStats getTotalStats() {
+    int leased = 0;
+    int pending = 0;
+
+    synchronized (_routeCounts) {
+      for (RouteCounts counts : _routeCounts.values()) {
+        leased += counts._leased;
+        pending += counts._pending;
+      }
+    }
+
+    int available = Math.max(0, getConnectionsInPool() - leased);
+    return new PoolStats(leased, available, pending, ConnManagerParams.getMaxTotalConnections(_params));
+  }
+
+  private void connectionRequested(HttpRoute route) {
+    synchronized (_routeCounts) {
+      RouteCounts counts = _routeCounts.get(route);
+      if (counts == null) {
+        counts = new RouteCounts();
+        _routeCounts.put(route, counts);
+      }
+
+      counts._pending += 1;
+    }
+  }
+
+  private void connectionLeased(HttpRoute route, ManagedClientConnection conn) {
+    synchronized (_routeCounts) {
+      RouteCounts counts = _routeCounts.get(route);
+      if (counts == null) {
+        // We got shut down while waiting.
+        return;
+      }
+
+      counts._pending -= 1;
+      if (conn != null) {
+        counts._leased += 1;
+        _leasedConnections.put(conn, route);
+      }
+    }
+  }
+
+  private void connectionReleased(ManagedClientConnection conn) {
+    synchronized (_routeCounts) {
+      // HttpClient can release the same connection more than once (e.g. when
+      // a request is aborted), so only count the first release.
+      HttpRoute route = _leasedConnections.remove(conn);
+      if (route != null) {
+        RouteCounts counts = _routeCounts.get(route);
+        if (counts != null) {
+          counts._leased -= 1;
+        }
+      }
+    }
+  }
+
+  private void removeUnusedRoutes() {
+    synchronized (_routeCounts) {
+      Iterator<Map.Entry<HttpRoute, RouteCounts>> iter = _routeCounts.entrySet().iterator();
+      while (iter.hasNext()) {
+        Map.Entry<HttpRoute, RouteCounts> entry = iter.next();
+        RouteCounts counts = entry.getValue();
+        if ((counts._leased == 0) && (counts._pending == 0) && (getConnectionsInPool(entry.getKey()) == 0)) {
+          iter.remove();
+        }
+      }
+    }
+  }
+}
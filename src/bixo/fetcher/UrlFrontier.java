@@ -0,0 +1,779 @@
+package bixo.fetcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.FetcherMode;
+import bixo.utils.SeenUrlFilter;
+import bixo.utils.UrlNormalizer;
+
+/**
+ * Disk-backed queue of URLs waiting to be fetched, for crawls with more URLs
+ * than fit in memory.
+ *
+ * URLs are grouped by host, and each host's queue is a linked list of blocks
+ * in a series of append-only segment files. New URLs are buffered in memory
+ * until there's a block's worth, then the block is appended to the newest
+ * segment and linked from the host's previous last block. Only the block at
+ * the head of each host's queue is kept in memory, so memory use depends on
+ * the number of hosts (and the block size), not on the number of URLs. Once
+ * every block in a segment has been read, the segment file is deleted.
+ *
+ * Hosts with URLs are kept in a heap ordered by when they can next be fetched
+ * from, which is set from the FetcherPolicy's FetchRequest each time a batch
+ * is taken, so poll() only ever looks at the head of the heap.
+ *
+ * The frontier survives a clean restart, since close() saves the state of each
+ * host. If it isn't closed, the URLs are lost - the segments are deleted when
+ * the frontier is next opened.
+ */
+public class UrlFrontier implements Closeable {
+  private static Logger LOGGER = Logger.getLogger(UrlFrontier.class);
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  public static final int DEFAULT_BLOCK_SIZE = 64;
+  public static final int DEFAULT_MAX_BUFFERED_URLS = 100000;
+  public static final long NO_REQUEST_TIME = Long.MAX_VALUE;
+
+  // Longer URLs can't be written with writeUTF(), and aren't worth fetching.
+  public static final int MAX_URL_LENGTH = 16 * 1024;
+
+  // Record is magic number, payload length, payload CRC, and the location of
+  // the host's next block (which gets patched in place), then the payload.
+  private static final int RECORD_MAGIC = 0xBF40B10C;
+  private static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + 8;
+  private static final int NEXT_BLOCK_OFFSET = 4 + 4 + 4;
+  private static final long NO_BLOCK = 0;
+
+  private static final String SEGMENT_PREFIX = "frontier-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+  private static final String INDEX_FILENAME = "frontier.idx";
+  private static final int INDEX_VERSION = 1;
+
+  // Max number of segment files to keep open at once.
+  private static final int MAX_OPEN_SEGMENTS = 16;
+
+  // Number of calls to poll() between dropping hosts that have gone idle.
+  private static final int PURGE_INTERVAL = 10000;
+
+  private static class HostQueue implements Comparable<HostQueue> {
+    private final String _host;
+    private ArrayDeque<String> _head;
+    private ArrayList<String> _tail;
+    private long _firstBlock;
+    private long _lastBlock;
+    private long _size;
+    private long _nextRequestTime;
+    private boolean _scheduled;
+
+    public HostQueue(String host) {
+      _host = host;
+      _head = null;
+      _tail = null;
+      _firstBlock = NO_BLOCK;
+      _lastBlock = NO_BLOCK;
+      _size = 0;
+      _nextRequestTime = 0;
+      _scheduled = false;
+    }
+
+    @Override
+    public int compareTo(HostQueue o) {
+      if (_nextRequestTime < o._nextRequestTime) {
+        return -1;
+      } else if (_nextRequestTime > o._nextRequestTime) {
+        return 1;
+      } else {
+        return 0;
+      }
+    }
+  }
+
+  private static class Segment {
+    private final int _id;
+    private final File _file;
+    private int _used;
+    private int _numLiveBlocks;
+
+    public Segment(int id, File file) {
+      _id = id;
+      _file = file;
+      _used = 0;
+      _numLiveBlocks = 0;
+    }
+  }
+
+  private final File _dir;
+  private final FetcherPolicy _policy;
+  private final int _segmentSize;
+  private final int _blockSize;
+  private int _maxBufferedUrls;
+  private SeenUrlFilter _seenUrls;
+
+  private final Map<String, HostQueue> _hostQueues;
+  private final PriorityQueue<HostQueue> _readyHosts;
+  private final Map<Integer, Segment> _segments;
+  private final LinkedHashMap<Integer, FileChannel> _channels;
+  private Segment _currentSegment;
+  private int _nextSegmentId;
+
+  private long _size;
+  private int _numBuffered;
+  private int _numPolls;
+  private boolean _closed;
+
+  public UrlFrontier(File dir, FetcherPolicy policy) throws IOException {
+    this(dir, policy, DEFAULT_SEGMENT_SIZE, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * @param dir
+   *          Directory for the segment files, which is created if needed.
+   * @param policy
+   *          Policy used to decide how many URLs to take from a host at once,
+   *          and when the host can be fetched from again.
+   * @param segmentSize
+   *          Size of each segment file, in bytes.
+   * @param blockSize
+   *          Number of URLs to write (and read) for a host at once.
+   * @throws IOException
+   */
+  public UrlFrontier(File dir, FetcherPolicy policy, int segmentSize, int blockSize) throws IOException {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("blockSize must be >= 1: " + blockSize);
+    }
+
+    _dir = dir;
+    _policy = policy;
+    _segmentSize = segmentSize;
+    _blockSize = blockSize;
+    _maxBufferedUrls = DEFAULT_MAX_BUFFERED_URLS;
+
+    _hostQueues = new HashMap<String, HostQueue>();
+    _readyHosts = new PriorityQueue<HostQueue>();
+    _segments = new HashMap<Integer, Segment>();
+    _nextSegmentId = 1;
+    _channels = new LinkedHashMap<Integer, FileChannel>(MAX_OPEN_SEGMENTS, 0.75f, true) {
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+        if (size() > MAX_OPEN_SEGMENTS) {
+          safeClose(eldest.getValue());
+          return true;
+        } else {
+          return false;
+        }
+      }
+    };
+
+    if (!_dir.isDirectory() && !_dir.mkdirs()) {
+      throw new IOException("Can't create frontier directory " + _dir);
+    }
+
+    open();
+  }
+
+  public int getMaxBufferedUrls() {
+    return _maxBufferedUrls;
+  }
+
+  /**
+   * Set the max number of new URLs to keep in memory (across all hosts)
+   * before writing them to disk, even if they don't fill a block.
+   *
+   * @param maxBufferedUrls
+   */
+  public synchronized void setMaxBufferedUrls(int maxBufferedUrls) {
+    _maxBufferedUrls = maxBufferedUrls;
+  }
+
+  public synchronized SeenUrlFilter getSeenUrlFilter() {
+    return _seenUrls;
+  }
+
+  /**
+   * Only add URLs that aren't already in <seenUrls>, so that each URL is only
+   * queued once. This is what keeps the frontier from growing without bounds
+   * when pages link to each other.
+   *
+   * @param seenUrls
+   */
+  public synchronized void setSeenUrlFilter(SeenUrlFilter seenUrls) {
+    _seenUrls = seenUrls;
+  }
+
+  /**
+   * @return number of URLs in the frontier.
+   */
+  public synchronized long size() {
+    return _size;
+  }
+
+  public synchronized boolean isEmpty() {
+    return _size == 0;
+  }
+
+  /**
+   * @return number of hosts that we're keeping track of.
+   */
+  public synchronized int getNumHosts() {
+    return _hostQueues.size();
+  }
+
+  /**
+   * Add <url> to the end of its host's queue.
+   *
+   * @param url
+   * @return true if the URL was added, false if it's not valid, or it's
+   *         already been seen.
+   * @throws IOException
+   */
+  public synchronized boolean add(String url) throws IOException {
+    checkOpen();
+
+    String host = UrlNormalizer.getHost(url);
+    if ((host == null) || (url.length() > MAX_URL_LENGTH)) {
+      return false;
+    } else if ((_seenUrls != null) && !_seenUrls.add(url)) {
+      return false;
+    }
+
+    HostQueue hostQueue = _hostQueues.get(host);
+    if (hostQueue == null) {
+      hostQueue = new HostQueue(host);
+      _hostQueues.put(host, hostQueue);
+    }
+
+    if (hostQueue._tail == null) {
+      hostQueue._tail = new ArrayList<String>();
+    }
+
+    hostQueue._tail.add(url);
+    hostQueue._size += 1;
+    _size += 1;
+    _numBuffered += 1;
+
+    if (hostQueue._tail.size() >= _blockSize) {
+      writeTail(hostQueue);
+    } else if (_numBuffered > _maxBufferedUrls) {
+      writeAllTails();
+    }
+
+    schedule(hostQueue);
+    return true;
+  }
+
+  /**
+   * @return earliest time that poll() will return a batch of URLs, or
+   *         NO_REQUEST_TIME if the frontier is empty.
+   */
+  public synchronized long getNextRequestTime() {
+    HostQueue hostQueue = _readyHosts.peek();
+    return (hostQueue == null) ? NO_REQUEST_TIME : hostQueue._nextRequestTime;
+  }
+
+  /**
+   * Take the next batch of URLs from a host that's ready to be fetched from.
+   * The number of URLs, and when the host will next be ready, come from the
+   * FetcherPolicy's FetchRequest.
+   *
+   * @param now
+   *          current time
+   * @return URLs (all for the same host), or null if no host is ready yet.
+   * @throws IOException
+   */
+  public synchronized List<String> poll(long now) throws IOException {
+    checkOpen();
+
+    if (++_numPolls >= PURGE_INTERVAL) {
+      _numPolls = 0;
+      removeIdleHosts(now);
+    }
+
+    HostQueue hostQueue = _readyHosts.peek();
+    if ((hostQueue == null) || (hostQueue._nextRequestTime > now)) {
+      return null;
+    }
+
+    _readyHosts.poll();
+    hostQueue._scheduled = false;
+
+    long crawlDelay = (_policy.getFetcherMode() == FetcherMode.IMPOLITE) ? 0 : _policy.getCrawlDelay();
+    FetchRequest request = _policy.getFetchRequest(now, crawlDelay, (int) Math.min(Integer.MAX_VALUE, hostQueue._size));
+
+    // Always make progress, even if the policy says we can't fit in any URLs.
+    int numUrls = Math.max(1, request.getNumUrls());
+    List<String> result = new ArrayList<String>(numUrls);
+    while ((result.size() < numUrls) && (hostQueue._size > 0)) {
+      result.add(take(hostQueue));
+    }
+
+    hostQueue._nextRequestTime = request.getNextRequestTime();
+    schedule(hostQueue);
+    return result;
+  }
+
+  /**
+   * Write out everything that's in memory, and the state of each host, so
+   * that the frontier can be re-opened later.
+   */
+  public synchronized void close() throws IOException {
+    if (_closed) {
+      return;
+    }
+
+    try {
+      for (HostQueue hostQueue : _hostQueues.values()) {
+        writeHead(hostQueue);
+        writeTail(hostQueue);
+      }
+
+      writeIndex();
+    } finally {
+      _closed = true;
+
+      for (FileChannel channel : _channels.values()) {
+        safeClose(channel);
+      }
+      _channels.clear();
+    }
+  }
+
+  private void checkOpen() {
+    if (_closed) {
+      throw new IllegalStateException("Frontier has been closed");
+    }
+  }
+
+  private void schedule(HostQueue hostQueue) {
+    if (!hostQueue._scheduled && (hostQueue._size > 0)) {
+      hostQueue._scheduled = true;
+      _readyHosts.add(hostQueue);
+    }
+  }
+
+  /**
+   * Drop hosts that don't have any URLs, and that we could fetch from now,
+   * since there's nothing we need to remember about them.
+   */
+  private void removeIdleHosts(long now) {
+    Iterator<HostQueue> iter = _hostQueues.values().iterator();
+    while (iter.hasNext()) {
+      HostQueue hostQueue = iter.next();
+      if ((hostQueue._size == 0) && (hostQueue._nextRequestTime <= now)) {
+        iter.remove();
+      }
+    }
+  }
+
+  private String take(HostQueue hostQueue) throws IOException {
+    if ((hostQueue._head == null) || hostQueue._head.isEmpty()) {
+      readHead(hostQueue);
+    }
+
+    String result = hostQueue._head.poll();
+    if (hostQueue._head.isEmpty()) {
+      hostQueue._head = null;
+    }
+
+    hostQueue._size -= 1;
+    _size -= 1;
+    return result;
+  }
+
+  /**
+   * Load the next block of URLs for <hostQueue> - from disk, or if there's
+   * nothing on disk, from the URLs that haven't been written yet.
+   */
+  private void readHead(HostQueue hostQueue) throws IOException {
+    if (hostQueue._firstBlock != NO_BLOCK) {
+      long block = hostQueue._firstBlock;
+      hostQueue._head = new ArrayDeque<String>(_blockSize);
+      hostQueue._firstBlock = readBlock(block, hostQueue._head);
+      if (hostQueue._firstBlock == NO_BLOCK) {
+        hostQueue._lastBlock = NO_BLOCK;
+      }
+
+      releaseBlock(block);
+    } else {
+      hostQueue._head = new ArrayDeque<String>(hostQueue._tail);
+      _numBuffered -= hostQueue._tail.size();
+      hostQueue._tail = null;
+    }
+  }
+
+  /**
+   * Write the URLs at the head of the host's queue back to disk, in front of
+   * any blocks that are there already.
+   */
+  private void writeHead(HostQueue hostQueue) throws IOException {
+    if ((hostQueue._head == null) || hostQueue._head.isEmpty()) {
+      return;
+    }
+
+    long block = writeBlock(hostQueue._head, hostQueue._firstBlock);
+    if (hostQueue._firstBlock == NO_BLOCK) {
+      hostQueue._lastBlock = block;
+    }
+
+    hostQueue._firstBlock = block;
+    hostQueue._head = null;
+  }
+
+  private void writeTail(HostQueue hostQueue) throws IOException {
+    if ((hostQueue._tail == null) || hostQueue._tail.isEmpty()) {
+      return;
+    }
+
+    long block = writeBlock(hostQueue._tail, NO_BLOCK);
+    if (hostQueue._lastBlock == NO_BLOCK) {
+      hostQueue._firstBlock = block;
+    } else {
+      setNextBlock(hostQueue._lastBlock, block);
+    }
+
+    hostQueue._lastBlock = block;
+    _numBuffered -= hostQueue._tail.size();
+    hostQueue._tail = null;
+  }
+
+  private void writeAllTails() throws IOException {
+    for (HostQueue hostQueue : _hostQueues.values()) {
+      writeTail(hostQueue);
+    }
+  }
+
+  /**
+   * Append a block with <urls> to the current segment.
+   *
+   * @return location of the block.
+   */
+  private long writeBlock(Iterable<String> urls, long nextBlock) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(_blockSize * 100);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0);
+    int numUrls = 0;
+    for (String url : urls) {
+      out.writeUTF(url);
+      numUrls += 1;
+    }
+    out.close();
+
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.size());
+    record.position(RECORD_HEADER_SIZE);
+    record.put(bytes.toByteArray());
+    record.putInt(RECORD_HEADER_SIZE, numUrls);
+
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), RECORD_HEADER_SIZE, bytes.size());
+
+    record.putInt(0, RECORD_MAGIC);
+    record.putInt(4, bytes.size());
+    record.putInt(8, (int) crc.getValue());
+    record.putLong(NEXT_BLOCK_OFFSET, nextBlock);
+    record.flip();
+
+    Segment segment = getSegmentFor(record.remaining());
+    long block = makeBlock(segment._id, segment._used);
+    writeFully(getChannel(segment), record, segment._used);
+    segment._used += record.limit();
+    segment._numLiveBlocks += 1;
+
+    return block;
+  }
+
+  /**
+   * Read the URLs in <block> into <urls>.
+   *
+   * @return location of the next block.
+   */
+  private long readBlock(long block, ArrayDeque<String> urls) throws IOException {
+    Segment segment = _segments.get(getSegmentId(block));
+    if (segment == null) {
+      throw new IOException("Missing frontier segment for block " + Long.toHexString(block));
+    }
+
+    FileChannel channel = getChannel(segment);
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    readFully(channel, header, getOffset(block));
+    int magic = header.getInt(0);
+    int payloadLength = header.getInt(4);
+    int payloadCrc = header.getInt(8);
+    long nextBlock = header.getLong(NEXT_BLOCK_OFFSET);
+    if ((magic != RECORD_MAGIC) || (payloadLength < 4)) {
+      throw new IOException(String.format("Invalid frontier block at %d in %s", getOffset(block), segment._file));
+    }
+
+    ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+    readFully(channel, payload, getOffset(block) + RECORD_HEADER_SIZE);
+
+    CRC32 crc = new CRC32();
+    crc.update(payload.array(), 0, payloadLength);
+    if ((int) crc.getValue() != payloadCrc) {
+      throw new IOException(String.format("Corrupt frontier block at %d in %s", getOffset(block), segment._file));
+    }
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+    int numUrls = in.readInt();
+    for (int i = 0; i < numUrls; i++) {
+      urls.add(in.readUTF());
+    }
+
+    return nextBlock;
+  }
+
+  private void setNextBlock(long block, long nextBlock) throws IOException {
+    Segment segment = _segments.get(getSegmentId(block));
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    buffer.putLong(0, nextBlock);
+    writeFully(getChannel(segment), buffer, getOffset(block) + NEXT_BLOCK_OFFSET);
+  }
+
+  /**
+   * Note that <block> has been read, and delete its segment if that was the
+   * last live block in it.
+   */
+  private void releaseBlock(long block) {
+    Segment segment = _segments.get(getSegmentId(block));
+    segment._numLiveBlocks -= 1;
+    if ((segment._numLiveBlocks == 0) && (segment != _currentSegment)) {
+      deleteSegment(segment);
+    }
+  }
+
+  /**
+   * Return the segment to write a record of <length> bytes to, which is a
+   * new one if the current segment doesn't have room.
+   */
+  private Segment getSegmentFor(int length) throws IOException {
+    Segment segment = _currentSegment;
+    if ((segment != null) && ((segment._used == 0) || ((long) segment._used + length <= _segmentSize))) {
+      return segment;
+    }
+
+    int id = _nextSegmentId++;
+    Segment result = new Segment(id, makeSegmentFile(id));
+    _segments.put(id, result);
+    _currentSegment = result;
+
+    if ((segment != null) && (segment._numLiveBlocks == 0)) {
+      deleteSegment(segment);
+    }
+
+    return result;
+  }
+
+  private void deleteSegment(Segment segment) {
+    _segments.remove(segment._id);
+    FileChannel channel = _channels.remove(segment._id);
+    if (channel != null) {
+      safeClose(channel);
+    }
+
+    if (!segment._file.delete()) {
+      LOGGER.warn("Can't delete frontier segment " + segment._file);
+    }
+  }
+
+  private FileChannel getChannel(Segment segment) throws IOException {
+    FileChannel result = _channels.get(segment._id);
+    if (result == null) {
+      result = new RandomAccessFile(segment._file, "rw").getChannel();
+      _channels.put(segment._id, result);
+    }
+
+    return result;
+  }
+
+  /**
+   * Restore the state of each host from the index written by close(). The
+   * index is deleted once it's been read, since it's out of date as soon as
+   * anything changes.
+   */
+  private void open() throws IOException {
+    File indexFile = new File(_dir, INDEX_FILENAME);
+    if (indexFile.exists()) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+      try {
+        readIndex(in);
+      } finally {
+        in.close();
+      }
+
+      if (!indexFile.delete()) {
+        throw new IOException("Can't delete frontier index " + indexFile);
+      }
+    }
+
+    // Anything we don't know about is left over from a frontier that wasn't
+    // closed cleanly.
+    File[] files = _dir.listFiles(new FilenameFilter() {
+
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+
+    for (File file : files) {
+      int id;
+      try {
+        id = Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+
+      if (!_segments.containsKey(id) && !file.delete()) {
+        throw new IOException("Can't delete unused frontier segment " + file);
+      }
+    }
+  }
+
+  private void readIndex(DataInputStream in) throws IOException {
+    int version = in.readInt();
+    if (version != INDEX_VERSION) {
+      throw new IOException("Unknown frontier index version: " + version);
+    }
+
+    _nextSegmentId = in.readInt();
+
+    // We always start a new segment, so the old current segment gets deleted
+    // once it's been read, like the others.
+    int numSegments = in.readInt();
+    for (int i = 0; i < numSegments; i++) {
+      int id = in.readInt();
+      Segment segment = new Segment(id, makeSegmentFile(id));
+      segment._used = in.readInt();
+      segment._numLiveBlocks = in.readInt();
+      if (segment._numLiveBlocks > 0) {
+        _segments.put(id, segment);
+      }
+    }
+
+    int numHosts = in.readInt();
+    for (int i = 0; i < numHosts; i++) {
+      HostQueue hostQueue = new HostQueue(in.readUTF());
+      hostQueue._firstBlock = in.readLong();
+      hostQueue._lastBlock = in.readLong();
+      hostQueue._size = in.readLong();
+      hostQueue._nextRequestTime = in.readLong();
+
+      _hostQueues.put(hostQueue._host, hostQueue);
+      _size += hostQueue._size;
+      schedule(hostQueue);
+    }
+  }
+
+  private void writeIndex() throws IOException {
+    File tempFile = new File(_dir, INDEX_FILENAME + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+    try {
+      out.writeInt(INDEX_VERSION);
+      out.writeInt(_nextSegmentId);
+
+      out.writeInt(_segments.size());
+      for (Segment segment : _segments.values()) {
+        out.writeInt(segment._id);
+        out.writeInt(segment._used);
+        out.writeInt(segment._numLiveBlocks);
+      }
+
+      int numHosts = 0;
+      for (HostQueue hostQueue : _hostQueues.values()) {
+        if (hostQueue._size > 0) {
+          numHosts += 1;
+        }
+      }
+
+      out.writeInt(numHosts);
+      for (HostQueue hostQueue : _hostQueues.values()) {
+        if (hostQueue._size > 0) {
+          out.writeUTF(hostQueue._host);
+          out.writeLong(hostQueue._firstBlock);
+          out.writeLong(hostQueue._lastBlock);
+          out.writeLong(hostQueue._size);
+          out.writeLong(hostQueue._nextRequestTime);
+        }
+      }
+    } finally {
+      out.close();
+    }
+
+    for (FileChannel channel : _channels.values()) {
+      channel.force(false);
+    }
+
+    File indexFile = new File(_dir, INDEX_FILENAME);
+    if (!tempFile.renameTo(indexFile)) {
+      throw new IOException("Can't rename " + tempFile + " to " + indexFile);
+    }
+  }
+
+  private File makeSegmentFile(int id) {
+    return new File(_dir, String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+  }
+
+  private static long makeBlock(int segmentId, int offset) {
+    return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+  }
+
+  private static int getSegmentId(long block) {
+    return (int) (block >>> 32);
+  }
+
+  private static int getOffset(long block) {
+    return (int) block;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int numRead = channel.read(buffer, position);
+      if (numRead == -1) {
+        throw new IOException("Unexpected end of frontier segment at " + position);
+      }
+
+      position += numRead;
+    }
+  }
+
+  private static void safeClose(Closeable o) {
+    try {
+      o.close();
+    } catch (IOException e) {
+      LOGGER.warn("Exception closing frontier segment", e);
+    }
+  }
+}
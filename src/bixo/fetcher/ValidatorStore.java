@@ -0,0 +1,402 @@
+package bixo.fetcher;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.log4j.Logger;
+
+import bixo.utils.UrlFingerprint;
+
+/**
+ * Persistent store of the validators (ETag and Last-Modified date) returned
+ * for each URL, used to make conditional requests when recrawling.
+ *
+ * Entries are appended to a log file, keyed by the URL's 64-bit fingerprint
+ * (not the URL itself). The only thing kept in memory is an open addressing
+ * table that maps fingerprints to log file offsets, so each URL costs about
+ * 16 bytes of memory, and 18 bytes plus the ETag on disk. Updates and removes
+ * append a new record, and the log gets compacted when it's opened if it's
+ * more than half garbage.
+ */
+public class ValidatorStore implements Closeable {
+  private static Logger LOGGER = Logger.getLogger(ValidatorStore.class);
+
+  public static final long NO_LAST_MODIFIED = -1;
+
+  // Don't bother with crazy long ETags, it's not worth the disk space.
+  private static final int MAX_ETAG_LENGTH = 1024;
+
+  // Record is fingerprint, last modified, ETag length, and ETag bytes. A
+  // negative ETag length means the entry was removed.
+  private static final int RECORD_HEADER_SIZE = 8 + 8 + 2;
+  private static final short REMOVED_ETAG_LENGTH = -1;
+
+  // Don't compact small logs, it's not worth it.
+  private static final int MIN_COMPACT_RECORDS = 10000;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * The validators for one URL.
+   */
+  public static class Validators {
+    private final String _etag;
+    private final long _lastModified;
+
+    public Validators(String etag, long lastModified) {
+      _etag = etag;
+      _lastModified = lastModified;
+    }
+
+    /**
+     * @return ETag (including quotes), or null if there wasn't one.
+     */
+    public String getETag() {
+      return _etag;
+    }
+
+    /**
+     * @return Last-Modified date in milliseconds, or NO_LAST_MODIFIED.
+     */
+    public long getLastModified() {
+      return _lastModified;
+    }
+  }
+
+  /**
+   * Map from fingerprint to log offset, using linear probing. Zero is used
+   * to mark empty slots, so fingerprints of zero have to be remapped.
+   */
+  private static class OffsetTable {
+    private static final float MAX_LOAD = 0.75f;
+
+    private long[] _keys;
+    private long[] _offsets;
+    private int _size;
+
+    public OffsetTable() {
+      _keys = new long[1024];
+      _offsets = new long[1024];
+      _size = 0;
+    }
+
+    public int size() {
+      return _size;
+    }
+
+    public long get(long key) {
+      int mask = _keys.length - 1;
+      for (int i = (int) key & mask; _keys[i] != 0; i = (i + 1) & mask) {
+        if (_keys[i] == key) {
+          return _offsets[i];
+        }
+      }
+
+      return -1;
+    }
+
+    public void put(long key, long offset) {
+      if (_size >= _keys.length * MAX_LOAD) {
+        resize(_keys.length * 2);
+      }
+
+      int mask = _keys.length - 1;
+      int i = (int) key & mask;
+      while ((_keys[i] != 0) && (_keys[i] != key)) {
+        i = (i + 1) & mask;
+      }
+
+      if (_keys[i] == 0) {
+        _keys[i] = key;
+        _size += 1;
+      }
+
+      _offsets[i] = offset;
+    }
+
+    public void remove(long key) {
+      int mask = _keys.length - 1;
+      int i = (int) key & mask;
+      while (_keys[i] != key) {
+        if (_keys[i] == 0) {
+          return;
+        }
+
+        i = (i + 1) & mask;
+      }
+
+      _keys[i] = 0;
+      _size -= 1;
+
+      // Shift back any following entries that would no longer be found,
+      // since there's now a hole in their probe sequence.
+      int hole = i;
+      for (i = (i + 1) & mask; _keys[i] != 0; i = (i + 1) & mask) {
+        int home = (int) _keys[i] & mask;
+        if (((i - home) & mask) >= ((i - hole) & mask)) {
+          _keys[hole] = _keys[i];
+          _offsets[hole] = _offsets[i];
+          _keys[i] = 0;
+          hole = i;
+        }
+      }
+    }
+
+    private void resize(int capacity) {
+      long[] oldKeys = _keys;
+      long[] oldOffsets = _offsets;
+      _keys = new long[capacity];
+      _offsets = new long[capacity];
+      _size = 0;
+
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != 0) {
+          put(oldKeys[i], oldOffsets[i]);
+        }
+      }
+    }
+  }
+
+  private final File _file;
+  private final ByteBuffer _buffer;
+  private FileChannel _channel;
+  private OffsetTable _offsets;
+  private long _numRecords;
+
+  public ValidatorStore(File file) throws IOException {
+    _file = file;
+    _buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + MAX_ETAG_LENGTH);
+
+    open();
+
+    long numGarbage = _numRecords - _offsets.size();
+    if ((_numRecords > MIN_COMPACT_RECORDS) && (numGarbage > _offsets.size())) {
+      compact();
+    }
+  }
+
+  /**
+   * @return number of URLs with validators.
+   */
+  public synchronized int size() {
+    return _offsets.size();
+  }
+
+  /**
+   * @param url
+   * @return validators saved for <url>, or null if there aren't any.
+   * @throws IOException
+   */
+  public synchronized Validators get(String url) throws IOException {
+    long offset = _offsets.get(makeKey(url));
+    if (offset == -1) {
+      return null;
+    }
+
+    return readRecord(offset);
+  }
+
+  /**
+   * Save the validators for <url>. If there aren't any, then any old ones are
+   * removed, as they're no longer valid.
+   *
+   * @param url
+   * @param etag
+   *          ETag header value, or null
+   * @param lastModified
+   *          Last-Modified date, or NO_LAST_MODIFIED
+   * @throws IOException
+   */
+  public synchronized void put(String url, String etag, long lastModified) throws IOException {
+    byte[] etagBytes = (etag == null) ? new byte[0] : etag.getBytes(UTF_8);
+    if (etagBytes.length > MAX_ETAG_LENGTH) {
+      etagBytes = new byte[0];
+    }
+
+    if ((etagBytes.length == 0) && (lastModified == NO_LAST_MODIFIED)) {
+      remove(url);
+      return;
+    }
+
+    long key = makeKey(url);
+    long offset = appendRecord(key, lastModified, (short) etagBytes.length, etagBytes);
+    _offsets.put(key, offset);
+  }
+
+  public synchronized void remove(String url) throws IOException {
+    long key = makeKey(url);
+    if (_offsets.get(key) != -1) {
+      appendRecord(key, NO_LAST_MODIFIED, REMOVED_ETAG_LENGTH, new byte[0]);
+      _offsets.remove(key);
+    }
+  }
+
+  /**
+   * Rewrite the log so that it only contains the current records.
+   *
+   * @throws IOException
+   */
+  public synchronized void compact() throws IOException {
+    File tempFile = new File(_file.getPath() + ".tmp");
+    tempFile.delete();
+
+    FileChannel tempChannel = new RandomAccessFile(tempFile, "rw").getChannel();
+    try {
+      long[] keys = _offsets._keys;
+      long[] offsets = _offsets._offsets;
+
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == 0) {
+          continue;
+        }
+
+        _buffer.clear();
+        _buffer.limit(RECORD_HEADER_SIZE);
+        readFully(_channel, _buffer, offsets[i]);
+        _buffer.limit(RECORD_HEADER_SIZE + _buffer.getShort(16));
+        readFully(_channel, _buffer, offsets[i] + RECORD_HEADER_SIZE);
+        _buffer.flip();
+        while (_buffer.hasRemaining()) {
+          tempChannel.write(_buffer);
+        }
+      }
+
+      tempChannel.force(true);
+    } finally {
+      tempChannel.close();
+    }
+
+    // The move is atomic, so if we crash we have either the old log or the
+    // compacted one, and if it fails we carry on with the old log.
+    _channel.close();
+    try {
+      Files.move(tempFile.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      tempFile.delete();
+      throw new IOException("Can't replace " + _file + " with compacted log", e);
+    } finally {
+      open();
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    if (_channel != null) {
+      _channel.force(true);
+      _channel.close();
+      _channel = null;
+    }
+  }
+
+  /**
+   * Load the offsets of all records from the log. If we crashed while
+   * writing a record, the partial record at the end is discarded.
+   *
+   * @throws IOException
+   */
+  private void open() throws IOException {
+    _offsets = new OffsetTable();
+    _numRecords = 0;
+    long offset = 0;
+
+    if (_file.exists()) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+
+      try {
+        while (true) {
+          long key = in.readLong();
+          in.readLong();
+          short etagLength = in.readShort();
+
+          if (etagLength > 0) {
+            in.readFully(new byte[etagLength]);
+          }
+
+          if (etagLength == REMOVED_ETAG_LENGTH) {
+            _offsets.remove(key);
+          } else {
+            _offsets.put(key, offset);
+          }
+
+          offset += RECORD_HEADER_SIZE + Math.max(0, etagLength);
+          _numRecords += 1;
+        }
+      } catch (EOFException e) {
+        // Expected, when we hit the end of the log.
+      } finally {
+        in.close();
+      }
+    }
+
+    _channel = new RandomAccessFile(_file, "rw").getChannel();
+    if (_channel.size() > offset) {
+      LOGGER.warn(String.format("Discarding %d bytes of partial record at end of %s", _channel.size() - offset, _file));
+      _channel.truncate(offset);
+    }
+
+    _channel.position(offset);
+  }
+
+  private Validators readRecord(long offset) throws IOException {
+    _buffer.clear();
+    _buffer.limit(RECORD_HEADER_SIZE);
+    readFully(_channel, _buffer, offset);
+
+    long lastModified = _buffer.getLong(8);
+    int etagLength = _buffer.getShort(16);
+    String etag = null;
+
+    if (etagLength > 0) {
+      _buffer.clear();
+      _buffer.limit(etagLength);
+      readFully(_channel, _buffer, offset + RECORD_HEADER_SIZE);
+      etag = new String(_buffer.array(), 0, etagLength, UTF_8);
+    }
+
+    return new Validators(etag, lastModified);
+  }
+
+  private long appendRecord(long key, long lastModified, short etagLength, byte[] etagBytes) throws IOException {
+    long offset = _channel.position();
+
+    _buffer.clear();
+    _buffer.putLong(key);
+    _buffer.putLong(lastModified);
+    _buffer.putShort(etagLength);
+    _buffer.put(etagBytes);
+    _buffer.flip();
+
+    while (_buffer.hasRemaining()) {
+      _channel.write(_buffer);
+    }
+
+    _numRecords += 1;
+    return offset;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      int bytesRead = channel.read(buffer, offset);
+      if (bytesRead == -1) {
+        throw new EOFException("Unexpected end of validator log");
+      }
+
+      offset += bytesRead;
+    }
+  }
+
+  private static long makeKey(String url) {
+    long key = UrlFingerprint.fingerprint(url);
+    return (key == 0) ? 1 : key;
+  }
+}
@@ -0,0 +1,185 @@
+package bixo.robots;
+
+import bixo.utils.UrlNormalizer;
+
+/**
+ * Rules from one site's robots.txt file, for one robot.
+ *
+ * Rules are kept as char arrays, sorted so that the most specific (longest)
+ * pattern comes first, with Allow before Disallow for patterns of the same
+ * length. The first rule that matches a URL's path decides whether it's
+ * allowed. This is the same as Google's (and RFC 9309's) "longest match wins"
+ * semantics, without having to check every rule.
+ *
+ * Checking a URL doesn't allocate anything - the path is matched in place in
+ * the URL string, since this is done for every URL we fetch.
+ */
+public class RobotRules {
+
+  public static final long NO_CRAWL_DELAY = -1;
+
+  public static final RobotRules ALLOW_ALL = new RobotRules(false, new char[0][], new boolean[0], NO_CRAWL_DELAY);
+  public static final RobotRules DEFERRED = new RobotRules(true, new char[0][], new boolean[0], NO_CRAWL_DELAY);
+
+  private static final String ROBOTS_PATH = "/robots.txt";
+
+  private final boolean _deferred;
+  private final char[][] _patterns;
+  private final boolean[] _allows;
+  private final long _crawlDelay;
+
+  /**
+   * @param deferred
+   *          true if we couldn't get the robots.txt file, so we shouldn't
+   *          fetch anything from the site for now.
+   * @param patterns
+   *          path patterns, in the order that they should be checked.
+   * @param allows
+   *          whether each pattern is an Allow (versus Disallow) rule.
+   * @param crawlDelay
+   *          delay between requests in milliseconds, or NO_CRAWL_DELAY
+   */
+  RobotRules(boolean deferred, char[][] patterns, boolean[] allows, long crawlDelay) {
+    _deferred = deferred;
+    _patterns = patterns;
+    _allows = allows;
+    _crawlDelay = crawlDelay;
+  }
+
+  /**
+   * @return true if we couldn't get the robots.txt file (e.g. the server
+   *         returned a 5xx error), so URLs should be deferred, not fetched.
+   */
+  public boolean isDeferred() {
+    return _deferred;
+  }
+
+  /**
+   * @return delay between requests (in milliseconds) that the site asked
+   *         for, or NO_CRAWL_DELAY
+   */
+  public long getCrawlDelay() {
+    return _crawlDelay;
+  }
+
+  public int getNumRules() {
+    return _patterns.length;
+  }
+
+  /**
+   * @param url
+   *          absolute URL, for the site these rules came from.
+   * @return true if <url> can be fetched.
+   */
+  public boolean isAllowed(String url) {
+    if (_deferred) {
+      return false;
+    } else if (_patterns.length == 0) {
+      return true;
+    }
+
+    int pathStart = findPathStart(url);
+    int pathEnd = findPathEnd(url, pathStart);
+
+    // The robots.txt file itself is always allowed.
+    if (isRobotsPath(url, pathStart, pathEnd)) {
+      return true;
+    }
+
+    for (int i = 0; i < _patterns.length; i++) {
+      if (matches(_patterns[i], url, pathStart, pathEnd)) {
+        return _allows[i];
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Match <pattern> against the start of the path in url[start, end), where
+   * a missing path is treated as "/". A '*' in the pattern matches any
+   * sequence of characters, and a trailing '$' anchors the pattern to the end
+   * of the path.
+   */
+  static boolean matches(char[] pattern, String url, int start, int end) {
+    boolean noSlash = (start == end) || (url.charAt(start) != '/');
+    int patternLen = pattern.length;
+    boolean anchored = (patternLen > 0) && (pattern[patternLen - 1] == '$');
+    if (anchored) {
+      patternLen -= 1;
+    }
+
+    int p = 0;
+    int u = start;
+    int starP = -1;
+    int starU = -1;
+
+    while (true) {
+      if (p == patternLen) {
+        // Without an anchor, matching a prefix of the path is enough.
+        if (!anchored || (u == end)) {
+          return true;
+        }
+      } else if (pattern[p] == '*') {
+        starP = p++;
+        starU = u;
+        continue;
+      } else if ((u < end) && (pattern[p] == url.charAt(u))) {
+        p++;
+        u++;
+        continue;
+      } else if ((u < end) && (pattern[p] == UrlNormalizer.decodeUnreserved(url, u, end))) {
+        // Patterns have escaped unreserved characters decoded, but the URL
+        // might not.
+        p++;
+        u += 3;
+        continue;
+      } else if ((p == 0) && noSlash && (pattern[p] == '/')) {
+        // A missing path is the same as "/".
+        p++;
+        continue;
+      }
+
+      // Mismatch, so backtrack to the last '*' and have it swallow one more
+      // character.
+      if ((starP == -1) || (starU >= end)) {
+        return false;
+      }
+
+      p = starP + 1;
+      u = ++starU;
+    }
+  }
+
+  /**
+   * @return index of the first character of the path (after the scheme and
+   *         authority), or the length of <url> if there's no path.
+   */
+  private static int findPathStart(String url) {
+    int start = url.indexOf("://");
+    start = (start == -1) ? 0 : start + 3;
+
+    int len = url.length();
+    for (int i = start; i < len; i++) {
+      char c = url.charAt(i);
+      if ((c == '/') || (c == '?')) {
+        return i;
+      }
+    }
+
+    return len;
+  }
+
+  /**
+   * @return index of the end of the path (including any query), which is the
+   *         start of the fragment, if there is one.
+   */
+  private static int findPathEnd(String url, int pathStart) {
+    int end = url.indexOf('#', pathStart);
+    return (end == -1) ? url.length() : end;
+  }
+
+  private static boolean isRobotsPath(String url, int start, int end) {
+    return ((end - start) == ROBOTS_PATH.length()) && url.regionMatches(start, ROBOTS_PATH, 0, ROBOTS_PATH.length());
+  }
+}
@@ -0,0 +1,356 @@
+package bixo.robots;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpStatus;
+import org.apache.log4j.Logger;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.UserAgent;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.UrlFetchException;
+import bixo.fetcher.FetchedResult;
+import bixo.fetcher.HttpHeaderNames;
+import bixo.fetcher.SimpleHttpFetcher;
+import bixo.fetcher.Tuple2;
+
+/**
+ * Shared cache of robots.txt rules, by site (scheme, host and port).
+ *
+ * Rules are fetched (using SimpleHttpFetcher) the first time a site is
+ * needed, and kept until they expire. If several threads need the rules for
+ * the same site at the same time, only one of them fetches the file, and the
+ * others wait for its result.
+ *
+ * As per RFC 9309, a 4xx response means there are no restrictions, and a 5xx
+ * response or network error means the site should be treated as completely
+ * disallowed for now - which we report as deferred, with a shorter expiration
+ * so we try again later.
+ *
+ * The fetcher should be used only for robots.txt files (see makeFetcher()),
+ * since the crawl's policy (e.g. its valid mime-types) would otherwise mean
+ * some or all robots.txt files can't be fetched.
+ */
+public class RobotRulesCache {
+  private static Logger LOGGER = Logger.getLogger(RobotRulesCache.class);
+
+  public static final long DEFAULT_EXPIRATION = 24 * 60 * 60 * 1000L;
+  public static final long DEFAULT_DEFERRED_EXPIRATION = 10 * 60 * 1000L;
+  public static final int DEFAULT_MAX_SITES = 100000;
+  public static final int DEFAULT_MAX_THREADS = 10;
+
+  // RFC 9309 says to follow at least five redirects.
+  private static final int MAX_REDIRECTS = 5;
+
+  private static final String ROBOTS_PATH = "/robots.txt";
+
+  // HTTP status for "Too Many Requests", from RFC 6585.
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  // Any file has been modified since the epoch, so this gets the whole file
+  // even if the fetcher has validators for it (which it only uses when the
+  // request isn't already conditional).
+  private static final List<Tuple2<?, ?>> UNCONDITIONAL_HEADERS = Collections.<Tuple2<?, ?>> singletonList(new Tuple2<String, String>(
+      HttpHeaderNames.IF_MODIFIED_SINCE, "Thu, 01 Jan 1970 00:00:00 GMT"));
+
+  private static class CacheEntry {
+    private final RobotRules _rules;
+    private final long _expirationTime;
+
+    public CacheEntry(RobotRules rules, long expirationTime) {
+      _rules = rules;
+      _expirationTime = expirationTime;
+    }
+  }
+
+  private final SimpleHttpFetcher _fetcher;
+  private final RobotRulesParser _parser;
+  private final ConcurrentHashMap<String, CacheEntry> _cache;
+  private final ConcurrentHashMap<String, FutureTask<RobotRules>> _pending;
+
+  private long _expiration;
+  private long _deferredExpiration;
+  private int _maxSites;
+
+  /**
+   * @param crawlPolicy
+   *          policy for the crawl, which is used for timing limits.
+   * @param userAgent
+   * @param robotName
+   *          name of our robot, as used in User-agent lines.
+   */
+  public RobotRulesCache(FetcherPolicy crawlPolicy, UserAgent userAgent, String robotName) {
+    this(makeFetcher(crawlPolicy, userAgent), robotName);
+  }
+
+  /**
+   * @param fetcher
+   *          fetcher to use for getting robots.txt files.
+   * @param robotName
+   *          name of our robot, as used in User-agent lines.
+   */
+  public RobotRulesCache(SimpleHttpFetcher fetcher, String robotName) {
+    _fetcher = fetcher;
+    _parser = new RobotRulesParser(robotName);
+    _cache = new ConcurrentHashMap<String, CacheEntry>();
+    _pending = new ConcurrentHashMap<String, FutureTask<RobotRules>>();
+
+    _expiration = DEFAULT_EXPIRATION;
+    _deferredExpiration = DEFAULT_DEFERRED_EXPIRATION;
+    _maxSites = DEFAULT_MAX_SITES;
+  }
+
+  public long getExpiration() {
+    return _expiration;
+  }
+
+  /**
+   * Set how long rules are kept before the robots.txt file is fetched again.
+   *
+   * @param expiration
+   */
+  public void setExpiration(long expiration) {
+    _expiration = expiration;
+  }
+
+  public long getDeferredExpiration() {
+    return _deferredExpiration;
+  }
+
+  /**
+   * Set how long to wait before trying again, when we couldn't get the
+   * robots.txt file.
+   *
+   * @param deferredExpiration
+   */
+  public void setDeferredExpiration(long deferredExpiration) {
+    _deferredExpiration = deferredExpiration;
+  }
+
+  public int getMaxSites() {
+    return _maxSites;
+  }
+
+  public void setMaxSites(int maxSites) {
+    _maxSites = maxSites;
+  }
+
+  /**
+   * Return the rules for the site that <url> is on, fetching the site's
+   * robots.txt file if we don't already have current rules for it.
+   *
+   * @param url
+   * @return rules for the site.
+   */
+  public RobotRules getRules(String url) {
+    final String siteUrl = getSiteUrl(url);
+    if (siteUrl == null) {
+      // We'll find out it's bad when we try to fetch it.
+      return RobotRules.ALLOW_ALL;
+    }
+
+    RobotRules result = getCachedRules(siteUrl, System.currentTimeMillis());
+    if (result != null) {
+      return result;
+    }
+
+    FutureTask<RobotRules> task = new FutureTask<RobotRules>(new Callable<RobotRules>() {
+      @Override
+      public RobotRules call() throws Exception {
+        // Someone might have finished fetching the rules since we checked.
+        RobotRules cachedRules = getCachedRules(siteUrl, System.currentTimeMillis());
+        return (cachedRules != null) ? cachedRules : fetchRules(siteUrl);
+      }
+    });
+
+    FutureTask<RobotRules> pending = _pending.putIfAbsent(siteUrl, task);
+    if (pending == null) {
+      pending = task;
+
+      // Once the task is in _pending other threads can be waiting on it, so
+      // we always have to run it.
+      try {
+        task.run();
+      } finally {
+        _pending.remove(siteUrl, task);
+      }
+    }
+
+    try {
+      return pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return RobotRules.DEFERRED;
+    } catch (ExecutionException e) {
+      LOGGER.warn("Unexpected exception getting robots.txt for " + siteUrl, e.getCause());
+      return RobotRules.DEFERRED;
+    }
+  }
+
+  /**
+   * @param url
+   * @return current rules for the site that <url> is on, or null if we don't
+   *         have them (in which case you need to call getRules()).
+   */
+  public RobotRules getCachedRules(String url) {
+    String siteUrl = getSiteUrl(url);
+    return (siteUrl == null) ? RobotRules.ALLOW_ALL : getCachedRules(siteUrl, System.currentTimeMillis());
+  }
+
+  public int size() {
+    return _cache.size();
+  }
+
+  public void clear() {
+    _cache.clear();
+  }
+
+  private RobotRules getCachedRules(String siteUrl, long now) {
+    CacheEntry entry = _cache.get(siteUrl);
+    if ((entry == null) || (entry._expirationTime <= now)) {
+      return null;
+    } else {
+      return entry._rules;
+    }
+  }
+
+  private RobotRules fetchRules(String siteUrl) {
+    String robotsUrl = siteUrl + ROBOTS_PATH;
+    RobotRules result;
+
+    try {
+      FetchedResult fetchResult = _fetcher.get(robotsUrl);
+      if (fetchResult.isNotModified()) {
+        // The fetcher has a validator store, and the file hasn't changed. If
+        // we no longer have the rules (e.g. after a restart, or they were
+        // removed to make room), we have to get the whole file again.
+        CacheEntry entry = _cache.get(siteUrl);
+        if (entry != null) {
+          result = entry._rules;
+        } else {
+          fetchResult = _fetcher.get(robotsUrl, UNCONDITIONAL_HEADERS);
+          result = fetchResult.isNotModified() ? RobotRules.DEFERRED : _parser.parse(getContent(fetchResult));
+        }
+      } else {
+        result = _parser.parse(getContent(fetchResult));
+      }
+    } catch (HttpFetchException e) {
+      int httpStatus = e.getHttpStatus();
+      if ((httpStatus >= HttpStatus.SC_INTERNAL_SERVER_ERROR) || (httpStatus == SC_TOO_MANY_REQUESTS)) {
+        result = RobotRules.DEFERRED;
+      } else {
+        result = RobotRules.ALLOW_ALL;
+      }
+    } catch (RedirectFetchException e) {
+      // Too many (or disallowed) redirects is the same as no file.
+      result = RobotRules.ALLOW_ALL;
+    } catch (UrlFetchException e) {
+      result = RobotRules.ALLOW_ALL;
+    } catch (BaseFetchException e) {
+      // Includes aborted fetches, e.g. if the fetcher's policy doesn't like
+      // the mime-type, since we can't know what the file says.
+      result = RobotRules.DEFERRED;
+    } catch (IOException e) {
+      result = RobotRules.DEFERRED;
+    }
+
+    if (result.isDeferred()) {
+      LOGGER.debug("Deferring " + siteUrl + ", couldn't get " + robotsUrl);
+    }
+
+    long now = System.currentTimeMillis();
+    long expiration = result.isDeferred() ? _deferredExpiration : _expiration;
+    if (_cache.size() >= _maxSites) {
+      removeExpired(now);
+    }
+
+    _cache.put(siteUrl, new CacheEntry(result, now + expiration));
+    return result;
+  }
+
+  private void removeExpired(long now) {
+    Iterator<Map.Entry<String, CacheEntry>> iter = _cache.entrySet().iterator();
+    while (iter.hasNext()) {
+      if (iter.next().getValue()._expirationTime <= now) {
+        iter.remove();
+      }
+    }
+
+    // Don't let the cache grow without bounds, when crawling lots of sites.
+    if (_cache.size() >= _maxSites) {
+      _cache.clear();
+    }
+  }
+
+  /**
+   * Make a fetcher for robots.txt files, with a policy that accepts any
+   * mime-type, and limits the size to what we'll parse. Timing limits come
+   * from <crawlPolicy>.
+   *
+   * @param crawlPolicy
+   * @param userAgent
+   * @return new fetcher, without a validator store or response cache.
+   */
+  public static SimpleHttpFetcher makeFetcher(FetcherPolicy crawlPolicy, UserAgent userAgent) {
+    FetcherPolicy policy = new FetcherPolicy();
+    policy.setMaxContentSize(RobotRulesParser.MAX_ROBOTS_SIZE);
+    policy.setMinResponseRate(crawlPolicy.getMinResponseRate());
+    policy.setCrawlEndTime(crawlPolicy.getCrawlEndTime());
+    policy.setMaxFetchTime(crawlPolicy.getMaxFetchTime());
+    policy.setRequestTimeout(crawlPolicy.getRequestTimeout());
+    policy.setMaxRedirects(MAX_REDIRECTS);
+    policy.setRedirectMode(FetcherPolicy.RedirectMode.FOLLOW_ALL);
+
+    return new SimpleHttpFetcher(DEFAULT_MAX_THREADS, policy, userAgent);
+  }
+
+  private static byte[] getContent(FetchedResult result) throws IOException {
+    if (result.getContent() != null) {
+      return result.getContent();
+    } else if (result.getContentFile() != null) {
+      return FileUtils.readFileToByteArray(result.getContentFile());
+    } else {
+      return new byte[0];
+    }
+  }
+
+  /**
+   * @return "scheme://host[:port]" for <url>, lower-cased, or null if it's not
+   *         an absolute URL.
+   */
+  static String getSiteUrl(String url) {
+    int hostStart = url.indexOf("://");
+    if (hostStart <= 0) {
+      return null;
+    }
+
+    hostStart += 3;
+    int hostEnd = hostStart;
+    int len = url.length();
+    while ((hostEnd < len) && ("/?#".indexOf(url.charAt(hostEnd)) == -1)) {
+      hostEnd++;
+    }
+
+    if (hostEnd == hostStart) {
+      return null;
+    }
+
+    // Drop any user info.
+    int at = url.lastIndexOf('@', hostEnd - 1);
+    String scheme = url.substring(0, hostStart).toLowerCase(Locale.ENGLISH);
+    String host = url.substring((at >= hostStart) ? at + 1 : hostStart, hostEnd).toLowerCase(Locale.ENGLISH);
+    return scheme + host;
+  }
+}
@@ -0,0 +1,264 @@
+package bixo.robots;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.log4j.Logger;
+
+import bixo.utils.UrlNormalizer;
+
+/**
+ * Parser for robots.txt files, following RFC 9309 (plus the widely used
+ * Crawl-delay extension).
+ *
+ * The rules used are those from the group(s) whose User-agent matches our
+ * robot name, or the "*" group if none do. Groups for the same agent are
+ * merged. Paths are normalized so that percent-encoding in the file matches
+ * the (encoded) URLs we fetch.
+ */
+public class RobotRulesParser {
+  private static Logger LOGGER = Logger.getLogger(RobotRulesParser.class);
+
+  // Same limit as Google - anything past this is ignored.
+  public static final int MAX_ROBOTS_SIZE = 500 * 1024;
+
+  private static final String WILDCARD_AGENT = "*";
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private static class Rule {
+    private final String _pattern;
+    private final boolean _allow;
+
+    public Rule(String pattern, boolean allow) {
+      _pattern = pattern;
+      _allow = allow;
+    }
+  }
+
+  // Most specific (longest) first, and Allow wins ties.
+  private static final Comparator<Rule> RULE_ORDER = new Comparator<Rule>() {
+    @Override
+    public int compare(Rule r1, Rule r2) {
+      int result = r2._pattern.length() - r1._pattern.length();
+      if (result == 0) {
+        result = (r1._allow == r2._allow) ? 0 : (r1._allow ? -1 : 1);
+      }
+
+      return result;
+    }
+  };
+
+  private final String _robotName;
+
+  /**
+   * @param robotName
+   *          name of our robot, as used in User-agent lines (e.g. "mybot").
+   */
+  public RobotRulesParser(String robotName) {
+    _robotName = robotName.toLowerCase(Locale.ENGLISH);
+  }
+
+  public String getRobotName() {
+    return _robotName;
+  }
+
+  /**
+   * @param content
+   *          robots.txt file, which is assumed to be UTF-8.
+   * @return rules for our robot.
+   */
+  public RobotRules parse(byte[] content) {
+    int length = Math.min(content.length, MAX_ROBOTS_SIZE);
+    return parse(new String(content, 0, length, StandardCharsets.UTF_8));
+  }
+
+  public RobotRules parse(String content) {
+    List<Rule> agentRules = new ArrayList<Rule>();
+    List<Rule> wildcardRules = new ArrayList<Rule>();
+    long agentCrawlDelay = RobotRules.NO_CRAWL_DELAY;
+    long wildcardCrawlDelay = RobotRules.NO_CRAWL_DELAY;
+    boolean foundAgent = false;
+
+    // State of the current group.
+    boolean inAgents = false;
+    boolean matchesAgent = false;
+    boolean matchesWildcard = false;
+
+    int lineStart = 0;
+    int len = content.length();
+    if ((len > 0) && (content.charAt(0) == '\uFEFF')) {
+      lineStart = 1;
+    }
+
+    while (lineStart < len) {
+      int lineEnd = lineStart;
+      while ((lineEnd < len) && (content.charAt(lineEnd) != '\n') && (content.charAt(lineEnd) != '\r')) {
+        lineEnd++;
+      }
+
+      String line = content.substring(lineStart, lineEnd);
+      lineStart = lineEnd + 1;
+
+      int comment = line.indexOf('#');
+      if (comment != -1) {
+        line = line.substring(0, comment);
+      }
+
+      int colon = line.indexOf(':');
+      if (colon == -1) {
+        continue;
+      }
+
+      String field = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+      String value = line.substring(colon + 1).trim();
+
+      if (field.equals("user-agent")) {
+        if (!inAgents) {
+          // Start of a new group.
+          inAgents = true;
+          matchesAgent = false;
+          matchesWildcard = false;
+        }
+
+        if (value.equals(WILDCARD_AGENT)) {
+          matchesWildcard = true;
+        } else if (isOurAgent(value)) {
+          matchesAgent = true;
+          foundAgent = true;
+        }
+
+        continue;
+      }
+
+      inAgents = false;
+      if (!matchesAgent && !matchesWildcard) {
+        continue;
+      }
+
+      if (field.equals("allow") || field.equals("disallow")) {
+        // An empty Disallow means allow everything, which is the default.
+        if (value.length() == 0) {
+          continue;
+        }
+
+        Rule rule = new Rule(normalizePath(value), field.equals("allow"));
+        if (matchesAgent) {
+          agentRules.add(rule);
+        }
+        if (matchesWildcard) {
+          wildcardRules.add(rule);
+        }
+      } else if (field.equals("crawl-delay")) {
+        long crawlDelay = parseCrawlDelay(value);
+        if (matchesAgent) {
+          agentCrawlDelay = crawlDelay;
+        }
+        if (matchesWildcard) {
+          wildcardCrawlDelay = crawlDelay;
+        }
+      }
+    }
+
+    if (foundAgent) {
+      return makeRules(agentRules, agentCrawlDelay);
+    } else {
+      return makeRules(wildcardRules, wildcardCrawlDelay);
+    }
+  }
+
+  /**
+   * A User-agent line matches if its product token (the part before any '/')
+   * is the same as our robot name, ignoring case.
+   */
+  private boolean isOurAgent(String agent) {
+    int slash = agent.indexOf('/');
+    if (slash != -1) {
+      agent = agent.substring(0, slash).trim();
+    }
+
+    return agent.equalsIgnoreCase(_robotName);
+  }
+
+  private static RobotRules makeRules(List<Rule> rules, long crawlDelay) {
+    if (rules.isEmpty() && (crawlDelay == RobotRules.NO_CRAWL_DELAY)) {
+      return RobotRules.ALLOW_ALL;
+    }
+
+    Rule[] sorted = rules.toArray(new Rule[rules.size()]);
+    Arrays.sort(sorted, RULE_ORDER);
+
+    char[][] patterns = new char[sorted.length][];
+    boolean[] allows = new boolean[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      patterns[i] = sorted[i]._pattern.toCharArray();
+      allows[i] = sorted[i]._allow;
+    }
+
+    return new RobotRules(false, patterns, allows, crawlDelay);
+  }
+
+  /**
+   * @return crawl delay in milliseconds, from <value> in seconds (which can
+   *         have a fraction), or NO_CRAWL_DELAY if it's not valid.
+   */
+  private static long parseCrawlDelay(String value) {
+    try {
+      double seconds = Double.parseDouble(value);
+      if ((seconds >= 0) && !Double.isInfinite(seconds)) {
+        return (long) (seconds * 1000);
+      }
+    } catch (NumberFormatException e) {
+      LOGGER.trace("Invalid Crawl-delay: " + value);
+    }
+
+    return RobotRules.NO_CRAWL_DELAY;
+  }
+
+  /**
+   * Percent-encode any characters that would be encoded in a URL (non-ASCII
+   * and control characters, and spaces), upper-case existing escapes, and
+   * decode escaped unreserved characters (as UrlNormalizer does), so that
+   * rules match the URLs we fetch. Paths without a leading '/' or '*' get
+   * one, since they're always relative to the root.
+   */
+  static String normalizePath(String path) {
+    StringBuilder result = new StringBuilder(path.length() + 1);
+    if ((path.charAt(0) != '/') && (path.charAt(0) != '*')) {
+      result.append('/');
+    }
+
+    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i < bytes.length; i++) {
+      int b = bytes[i] & 0xFF;
+      if ((b == '%') && (i + 2 < bytes.length) && isHexDigit(bytes[i + 1]) && isHexDigit(bytes[i + 2])) {
+        char value = (char) ((Character.digit(bytes[i + 1], 16) << 4) | Character.digit(bytes[i + 2], 16));
+        if (UrlNormalizer.isUnreserved(value)) {
+          result.append(value);
+        } else {
+          result.append('%');
+          result.append(Character.toUpperCase((char) bytes[i + 1]));
+          result.append(Character.toUpperCase((char) bytes[i + 2]));
+        }
+
+        i += 2;
+      } else if ((b <= ' ') || (b >= 0x7F)) {
+        result.append('%');
+        result.append(HEX_DIGITS[b >> 4]);
+        result.append(HEX_DIGITS[b & 0x0F]);
+      } else {
+        result.append((char) b);
+      }
+    }
+
+    return result.toString();
+  }
+
+  private static boolean isHexDigit(byte b) {
+    return ((b >= '0') && (b <= '9')) || ((b >= 'a') && (b <= 'f')) || ((b >= 'A') && (b <= 'F'));
+  }
+}
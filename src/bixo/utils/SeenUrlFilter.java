@@ -0,0 +1,267 @@
+package bixo.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Set of URLs that have been seen, for deduplication, as a Bloom filter in a
+ * memory-mapped file. It's keyed by UrlFingerprint, and doesn't use any heap
+ * for the bits, so hundreds of millions of URLs take a few hundred MB of page
+ * cache, versus tens of GB for a HashSet<String>.
+ *
+ * Like any Bloom filter, it can say a URL has been seen when it hasn't (at the
+ * false positive rate it was sized for, once it holds the expected number of
+ * URLs), but never the reverse. Memory per URL is -ln(p) / ln(2)^2 bits, so
+ * about 9.6 bits for a 1% false positive rate, and 14.4 bits for 0.1%.
+ *
+ * Bits are set with compare-and-swap on 64-bit words, so adds from any number
+ * of threads don't need locks. The filter is kept in the file, so it survives
+ * restarts - call close() (or flush()) to make sure it's all on disk.
+ */
+public class SeenUrlFilter implements Closeable {
+
+  public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+  // Header is magic number, version, number of bits, number of hash
+  // functions, and (approximate) number of URLs added. Longs are 8-byte
+  // aligned, since the count is updated atomically, and the header is padded
+  // so that the bits start on a cache line.
+  private static final int FILE_MAGIC = 0x5EE7F11E;
+  private static final int FILE_VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+  private static final int NUM_BITS_OFFSET = 8;
+  private static final int NUM_HASHES_OFFSET = 16;
+  private static final int COUNT_OFFSET = 24;
+
+  // Bits are mapped in chunks, since one mapping can't be more than 2GB.
+  private static final int CHUNK_BITS = 30;
+  private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final File _file;
+  private final long _numBits;
+  private final int _numHashes;
+  private final MappedByteBuffer _header;
+  private final MappedByteBuffer[] _chunks;
+
+  /**
+   * Open the filter in <file>, or create it if it doesn't exist. An existing
+   * filter keeps the size it was created with.
+   *
+   * @param file
+   * @param expectedUrls
+   *          number of URLs the filter is sized for.
+   * @param falsePositiveRate
+   *          odds of a new URL looking like it's been seen, once the filter
+   *          holds <expectedUrls> URLs.
+   * @throws IOException
+   */
+  public SeenUrlFilter(File file, long expectedUrls, double falsePositiveRate) throws IOException {
+    if (expectedUrls <= 0) {
+      throw new IllegalArgumentException("expectedUrls must be > 0: " + expectedUrls);
+    } else if ((falsePositiveRate <= 0.0) || (falsePositiveRate >= 1.0)) {
+      throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1: " + falsePositiveRate);
+    }
+
+    _file = file;
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+
+      if (channel.size() == 0) {
+        // Round up to a whole number of 64-bit words.
+        long numBits = calcNumBits(expectedUrls, falsePositiveRate);
+        _numBits = (numBits + 63) & ~63L;
+        _numHashes = calcNumHashes(expectedUrls, _numBits);
+
+        _header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        _header.putInt(0, FILE_MAGIC);
+        _header.putInt(4, FILE_VERSION);
+        _header.putLong(NUM_BITS_OFFSET, _numBits);
+        _header.putInt(NUM_HASHES_OFFSET, _numHashes);
+        _header.putLong(COUNT_OFFSET, 0);
+      } else {
+        _header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if ((_header.getInt(0) != FILE_MAGIC) || (_header.getInt(4) != FILE_VERSION)) {
+          throw new IOException("Not a seen URL filter file: " + file);
+        }
+
+        _numBits = _header.getLong(NUM_BITS_OFFSET);
+        _numHashes = _header.getInt(NUM_HASHES_OFFSET);
+      }
+
+      long numBytes = _numBits / 8;
+      int numChunks = (int) ((numBytes + CHUNK_SIZE - 1) / CHUNK_SIZE);
+      _chunks = new MappedByteBuffer[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+        long start = i * CHUNK_SIZE;
+        _chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + start, Math.min(CHUNK_SIZE, numBytes - start));
+      }
+    } finally {
+      // The mappings stay valid after the file is closed.
+      raf.close();
+    }
+  }
+
+  public File getFile() {
+    return _file;
+  }
+
+  public long getNumBits() {
+    return _numBits;
+  }
+
+  public int getNumHashes() {
+    return _numHashes;
+  }
+
+  /**
+   * @return number of URLs that have been added. This can be slightly off,
+   *         since it's updated without locking, and false positives aren't
+   *         counted.
+   */
+  public long getCount() {
+    return (long) LONGS.getVolatile(_header, COUNT_OFFSET);
+  }
+
+  /**
+   * @return bits of storage per URL, based on the current count.
+   */
+  public double getBitsPerUrl() {
+    long count = getCount();
+    return (count == 0) ? 0.0 : (double) _numBits / count;
+  }
+
+  /**
+   * @return expected false positive rate, based on the current count.
+   */
+  public double getFalsePositiveRate() {
+    return Math.pow(1.0 - Math.exp(-(double) _numHashes * getCount() / _numBits), _numHashes);
+  }
+
+  /**
+   * @param url
+   * @return true if <url> might have been added, false if it definitely
+   *         hasn't.
+   */
+  public boolean mightContain(String url) {
+    return mightContain(UrlFingerprint.fingerprint(url));
+  }
+
+  public boolean mightContain(long fingerprint) {
+    long hash1 = fingerprint;
+    long hash2 = calcSecondHash(fingerprint);
+
+    for (int i = 0; i < _numHashes; i++) {
+      long bit = Long.remainderUnsigned(hash1 + (i * hash2), _numBits);
+      long word = getWord(bit);
+      if ((word & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Add <url> to the filter. This is what to use as a pre-filter, since it
+   * checks and adds in one pass over the bits.
+   *
+   * @param url
+   * @return true if <url> wasn't in the filter (so it should be fetched),
+   *         false if it might have been.
+   */
+  public boolean add(String url) {
+    return add(UrlFingerprint.fingerprint(url));
+  }
+
+  public boolean add(long fingerprint) {
+    long hash1 = fingerprint;
+    long hash2 = calcSecondHash(fingerprint);
+    boolean added = false;
+
+    for (int i = 0; i < _numHashes; i++) {
+      long bit = Long.remainderUnsigned(hash1 + (i * hash2), _numBits);
+      if (setBit(bit)) {
+        added = true;
+      }
+    }
+
+    if (added) {
+      LONGS.getAndAdd(_header, COUNT_OFFSET, 1L);
+    }
+
+    return added;
+  }
+
+  /**
+   * Write any changes out to the file.
+   */
+  public void flush() {
+    _header.force();
+    for (MappedByteBuffer chunk : _chunks) {
+      chunk.force();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+
+  private long getWord(long bit) {
+    long offset = (bit >>> 6) << 3;
+    ByteBuffer chunk = _chunks[(int) (offset >>> CHUNK_BITS)];
+    return (long) LONGS.getVolatile(chunk, (int) (offset & (CHUNK_SIZE - 1)));
+  }
+
+  /**
+   * Set <bit>, using compare-and-swap so we don't lose bits set by other
+   * threads at the same time.
+   *
+   * @return true if the bit wasn't already set.
+   */
+  private boolean setBit(long bit) {
+    long offset = (bit >>> 6) << 3;
+    ByteBuffer chunk = _chunks[(int) (offset >>> CHUNK_BITS)];
+    int index = (int) (offset & (CHUNK_SIZE - 1));
+    long mask = 1L << bit;
+
+    while (true) {
+      long word = (long) LONGS.getVolatile(chunk, index);
+      if ((word & mask) != 0) {
+        return false;
+      } else if (LONGS.compareAndSet(chunk, index, word, word | mask)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Second hash for double hashing, from the SplitMix64 finalizer. It's made
+   * odd so that it's never zero.
+   */
+  private static long calcSecondHash(long hash) {
+    hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+    return (hash ^ (hash >>> 31)) | 1L;
+  }
+
+  private static long calcNumBits(long expectedUrls, double falsePositiveRate) {
+    return Math.max(64, (long) Math.ceil(-expectedUrls * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+  }
+
+  private static int calcNumHashes(long expectedUrls, long numBits) {
+    return Math.max(1, (int) Math.round((double) numBits / expectedUrls * Math.log(2)));
+  }
+}
@@ -0,0 +1,49 @@
+package bixo.utils;
+
+/**
+ * 64-bit fingerprints of URLs, for use as compact keys in on-disk stores. With
+ * 64 bits, the odds of two URLs colliding are negligible until you've got
+ * billions of them.
+ */
+public class UrlFingerprint {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private UrlFingerprint() {
+    // Enforce class isn't instantiated
+  }
+
+  /**
+   * Calculate the fingerprint of <url>. This is FNV-1a over the characters,
+   * with a final mixing step so that all bits of the result are well
+   * distributed (which matters when the low bits are used as a hash index).
+   *
+   * @param url
+   * @return 64-bit fingerprint
+   */
+  public static long fingerprint(String url) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < url.length(); i++) {
+      char c = url.charAt(i);
+      hash ^= (c & 0xFF);
+      hash *= FNV_PRIME;
+      hash ^= (c >>> 8);
+      hash *= FNV_PRIME;
+    }
+
+    return mix(hash);
+  }
+
+  /**
+   * Finalization step from MurmurHash3.
+   */
+  private static long mix(long hash) {
+    hash ^= (hash >>> 33);
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= (hash >>> 33);
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= (hash >>> 33);
+    return hash;
+  }
+}
@@ -0,0 +1,521 @@
+package bixo.utils;
+
+import java.util.Locale;
+
+/**
+ * Fast URL canonicalization, and host/domain extraction, without going
+ * through java.net.URI or java.net.URL.
+ *
+ * normalize() does everything in one pass over the URL, into one
+ * StringBuilder:
+ * - scheme and host are lower-cased, and a trailing dot on the host is
+ *   removed.
+ * - default ports (80 for http, 443 for https) and empty ports are removed.
+ * - "." and ".." path segments are resolved, and an empty path becomes "/".
+ * - characters that aren't legal in a URL (spaces, non-ASCII, etc) are
+ *   percent-encoded (as UTF-8), escapes are upper-cased, and escaped
+ *   unreserved characters (letters, digits, "-._~") are decoded.
+ * - an empty query and the fragment are removed.
+ *
+ * Only absolute, hierarchical URLs ("scheme://authority/path") are handled.
+ */
+public class UrlNormalizer {
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  // Characters (other than control, space and non-ASCII) that aren't legal
+  // anywhere in a URL.
+  private static final String ILLEGAL_CHARS = "\"<>\\^`{|}";
+
+  // Second-level labels that are commonly used under country-code TLDs as
+  // public suffixes, e.g. "co.uk" or "com.au".
+  private static final String[] GENERIC_SLDS = { "ac", "co", "com", "edu", "go", "gob", "gov", "ltd", "mil", "ne", "net", "nic", "or", "org", "plc", "sch" };
+
+  private UrlNormalizer() {
+    // Enforce class isn't instantiated
+  }
+
+  /**
+   * @param url
+   * @return canonical form of <url>, or null if it's not a valid absolute URL.
+   */
+  public static String normalize(String url) {
+    int start = 0;
+    int end = url.length();
+    while ((start < end) && (url.charAt(start) <= ' ')) {
+      start++;
+    }
+    while ((end > start) && (url.charAt(end - 1) <= ' ')) {
+      end--;
+    }
+
+    int schemeEnd = findSchemeEnd(url, start, end);
+    if (schemeEnd == -1) {
+      return null;
+    }
+
+    int authorityStart = schemeEnd + 3;
+    int authorityEnd = findAuthorityEnd(url, authorityStart, end);
+    int hostStart = url.lastIndexOf('@', authorityEnd - 1) + 1;
+    if (hostStart < authorityStart) {
+      hostStart = authorityStart;
+    }
+
+    int hostEnd = findHostEnd(url, hostStart, authorityEnd);
+    int portStart = (hostEnd < authorityEnd) ? hostEnd + 1 : authorityEnd;
+
+    StringBuilder result = new StringBuilder(end - start + 16);
+
+    // Scheme
+    for (int i = start; i < schemeEnd; i++) {
+      result.append(Character.toLowerCase(url.charAt(i)));
+    }
+    result.append("://");
+
+    // User info is kept as-is.
+    if (hostStart > authorityStart) {
+      result.append(url, authorityStart, hostStart);
+    }
+
+    // Host
+    int trimmedHostEnd = hostEnd;
+    if ((trimmedHostEnd > hostStart) && (url.charAt(trimmedHostEnd - 1) == '.')) {
+      trimmedHostEnd--;
+    }
+
+    if (trimmedHostEnd == hostStart) {
+      return null;
+    }
+
+    for (int i = hostStart; i < trimmedHostEnd; i++) {
+      result.append(Character.toLowerCase(url.charAt(i)));
+    }
+
+    // Port
+    if (portStart < authorityEnd) {
+      int port = 0;
+      for (int i = portStart; i < authorityEnd; i++) {
+        char c = url.charAt(i);
+        if ((c < '0') || (c > '9') || (port > 65535)) {
+          return null;
+        }
+
+        port = (port * 10) + (c - '0');
+      }
+
+      if (port > 65535) {
+        return null;
+      } else if (port != getDefaultPort(url, start, schemeEnd)) {
+        result.append(':');
+        result.append(port);
+      }
+    }
+
+    // Path
+    int pathEnd = authorityEnd;
+    while ((pathEnd < end) && (url.charAt(pathEnd) != '?') && (url.charAt(pathEnd) != '#')) {
+      pathEnd++;
+    }
+
+    appendPath(result, url, authorityEnd, pathEnd);
+
+    // Query, if it's not empty. The fragment is dropped.
+    if ((pathEnd < end) && (url.charAt(pathEnd) == '?')) {
+      int queryEnd = url.indexOf('#', pathEnd);
+      if ((queryEnd == -1) || (queryEnd > end)) {
+        queryEnd = end;
+      }
+
+      if (queryEnd > pathEnd + 1) {
+        result.append('?');
+        appendEncoded(result, url, pathEnd + 1, queryEnd);
+      }
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * @param url
+   * @return lower-cased host of <url>, or null if it doesn't have one.
+   */
+  public static String getHost(String url) {
+    int schemeEnd = findSchemeEnd(url, 0, url.length());
+    if (schemeEnd == -1) {
+      return null;
+    }
+
+    int authorityStart = schemeEnd + 3;
+    int authorityEnd = findAuthorityEnd(url, authorityStart, url.length());
+    int hostStart = Math.max(authorityStart, url.lastIndexOf('@', authorityEnd - 1) + 1);
+    int hostEnd = findHostEnd(url, hostStart, authorityEnd);
+    if ((hostEnd > hostStart) && (url.charAt(hostEnd - 1) == '.')) {
+      hostEnd--;
+    }
+
+    if (hostEnd == hostStart) {
+      return null;
+    }
+
+    // Only allocate a lower-cased copy if we have to.
+    for (int i = hostStart; i < hostEnd; i++) {
+      char c = url.charAt(i);
+      if ((c >= 'A') && (c <= 'Z')) {
+        return url.substring(hostStart, hostEnd).toLowerCase(Locale.ENGLISH);
+      }
+    }
+
+    return url.substring(hostStart, hostEnd);
+  }
+
+  /**
+   * Return the registered domain for <host>, e.g. "example.com" for
+   * "www.example.com", or "example.co.uk" for "www.example.co.uk". This uses
+   * a short list of common second-level suffixes under country-code TLDs,
+   * versus the full public suffix list, so it's a good approximation (for
+   * things like grouping hosts), not an exact answer.
+   *
+   * @param host
+   * @return registered domain, or <host> if it's an IP address or doesn't
+   *         have a parent domain.
+   */
+  public static String getRegisteredDomain(String host) {
+    if ((host == null) || isIpAddress(host)) {
+      return host;
+    }
+
+    int lastDot = host.lastIndexOf('.');
+    if (lastDot <= 0) {
+      return host;
+    }
+
+    int secondDot = host.lastIndexOf('.', lastDot - 1);
+    if (secondDot == -1) {
+      return host;
+    }
+
+    // For "xx.cc", where cc is a country code and xx is a generic suffix,
+    // include one more label.
+    if ((host.length() - lastDot - 1 == 2) && isGenericSld(host, secondDot + 1, lastDot)) {
+      int thirdDot = host.lastIndexOf('.', secondDot - 1);
+      return host.substring(thirdDot + 1);
+    }
+
+    return host.substring(secondDot + 1);
+  }
+
+  /**
+   * @param url
+   * @return registered domain of <url>'s host, or null if it doesn't have a
+   *         host.
+   */
+  public static String getDomain(String url) {
+    return getRegisteredDomain(getHost(url));
+  }
+
+  /**
+   * Percent-encode characters in <url> that aren't legal in a URL, such as
+   * spaces and non-ASCII characters, leaving everything else (including
+   * existing escapes) alone. This works for relative URLs too, e.g. a
+   * Location header value.
+   *
+   * @param url
+   * @return encoded URL, which is <url> itself if nothing needed encoding.
+   */
+  public static String encodeIllegalChars(String url) {
+    int len = url.length();
+    int i = 0;
+    while ((i < len) && !isIllegal(url.charAt(i))) {
+      i++;
+    }
+
+    if (i == len) {
+      return url;
+    }
+
+    StringBuilder result = new StringBuilder(len + 16);
+    result.append(url, 0, i);
+    while (i < len) {
+      char c = url.charAt(i);
+      if (isIllegal(c)) {
+        i = appendEscaped(result, url, i);
+      } else {
+        result.append(c);
+        i++;
+      }
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * @param url
+   * @param index
+   *          position of a '%' in <url>
+   * @param end
+   * @return the unreserved character (letter, digit, or "-._~") that's
+   *         escaped at url[index, index + 3), or -1 if it isn't one, so that
+   *         escaped and unescaped forms can be compared without decoding.
+   */
+  public static int decodeUnreserved(String url, int index, int end) {
+    if ((index + 2 >= end) || (url.charAt(index) != '%')) {
+      return -1;
+    }
+
+    int value = decodeHex(url, index + 1);
+    return ((value != -1) && isUnreserved((char) value)) ? value : -1;
+  }
+
+  /**
+   * @param c
+   * @return true if <c> never needs to be escaped in a URL, in which case
+   *         normalize() removes any escaping.
+   */
+  public static boolean isUnreserved(char c) {
+    return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) || (c == '-') || (c == '.') || (c == '_')
+        || (c == '~');
+  }
+
+  /**
+   * @return index of the ':' in "scheme://", or -1 if <url> doesn't start
+   *         with a valid scheme followed by "://".
+   */
+  private static int findSchemeEnd(String url, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = url.charAt(i);
+      if (c == ':') {
+        if ((i == start) || !url.startsWith("//", i + 1)) {
+          return -1;
+        }
+
+        return i;
+      } else if (!(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))
+          || ((i > start) && (((c >= '0') && (c <= '9')) || (c == '+') || (c == '-') || (c == '.'))))) {
+        return -1;
+      }
+    }
+
+    return -1;
+  }
+
+  private static int findAuthorityEnd(String url, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = url.charAt(i);
+      if ((c == '/') || (c == '?') || (c == '#')) {
+        return i;
+      }
+    }
+
+    return end;
+  }
+
+  /**
+   * @return index of the ':' before the port, or <authorityEnd> if there
+   *         isn't one. IPv6 addresses are in brackets, and contain colons.
+   */
+  private static int findHostEnd(String url, int hostStart, int authorityEnd) {
+    int i = hostStart;
+    if ((i < authorityEnd) && (url.charAt(i) == '[')) {
+      int close = url.indexOf(']', i);
+      i = ((close == -1) || (close > authorityEnd)) ? authorityEnd : close + 1;
+    }
+
+    for (; i < authorityEnd; i++) {
+      if (url.charAt(i) == ':') {
+        return i;
+      }
+    }
+
+    return authorityEnd;
+  }
+
+  /**
+   * @return default port for the scheme url[start, schemeEnd), or -1 if we
+   *         don't know it.
+   */
+  private static int getDefaultPort(String url, int start, int schemeEnd) {
+    int schemeLength = schemeEnd - start;
+    if ((schemeLength == 4) && url.regionMatches(true, start, "http", 0, 4)) {
+      return 80;
+    } else if ((schemeLength == 5) && url.regionMatches(true, start, "https", 0, 5)) {
+      return 443;
+    } else {
+      return -1;
+    }
+  }
+
+  /**
+   * Append the path url[start, end), with dot segments resolved and
+   * characters encoded, to <result>.
+   */
+  private static void appendPath(StringBuilder result, String url, int start, int end) {
+    int pathStart = result.length();
+
+    // Each segment is appended as "/segment", so <result> never ends with a
+    // '/' unless the last segment is empty.
+    int pos = start;
+    while (pos < end) {
+      int segStart = pos + 1;
+      int segEnd = segStart;
+      while ((segEnd < end) && (url.charAt(segEnd) != '/')) {
+        segEnd++;
+      }
+
+      boolean last = (segEnd >= end);
+      int numDots = countDots(url, segStart, segEnd);
+      if (numDots == 1) {
+        if (last) {
+          result.append('/');
+        }
+      } else if (numDots == 2) {
+        int parent = result.lastIndexOf("/");
+        result.setLength(Math.max(pathStart, parent));
+        if (last) {
+          result.append('/');
+        }
+      } else {
+        result.append('/');
+        appendEncoded(result, url, segStart, segEnd);
+      }
+
+      pos = segEnd;
+    }
+
+    if (result.length() == pathStart) {
+      result.append('/');
+    }
+  }
+
+  /**
+   * @return 1 if url[start, end) is ".", 2 if it's "..", otherwise 0. Dots
+   *         can be escaped as "%2E".
+   */
+  private static int countDots(String url, int start, int end) {
+    int result = 0;
+    int i = start;
+    while (i < end) {
+      if (url.charAt(i) == '.') {
+        i += 1;
+      } else if ((i + 2 < end) && (url.charAt(i) == '%') && (url.charAt(i + 1) == '2') && ((url.charAt(i + 2) == 'e') || (url.charAt(i + 2) == 'E'))) {
+        i += 3;
+      } else {
+        return 0;
+      }
+
+      result += 1;
+      if (result > 2) {
+        return 0;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Append url[start, end) to <result>, encoding illegal characters,
+   * upper-casing escapes, and decoding escaped unreserved characters.
+   */
+  private static void appendEncoded(StringBuilder result, String url, int start, int end) {
+    int i = start;
+    while (i < end) {
+      char c = url.charAt(i);
+      if (c == '%') {
+        int value = (i + 2 < end) ? decodeHex(url, i + 1) : -1;
+        if (value != -1) {
+          if (isUnreserved((char) value)) {
+            result.append((char) value);
+          } else {
+            result.append('%');
+            result.append(HEX_DIGITS[value >> 4]);
+            result.append(HEX_DIGITS[value & 0x0F]);
+          }
+
+          i += 3;
+        } else {
+          // A stray '%' has to be escaped itself.
+          result.append("%25");
+          i += 1;
+        }
+      } else if (isIllegal(c)) {
+        i = appendEscaped(result, url, i);
+      } else {
+        result.append(c);
+        i += 1;
+      }
+    }
+  }
+
+  /**
+   * Append the UTF-8 escaped form of the character (or surrogate pair) at
+   * url[index] to <result>.
+   *
+   * @return index of the next character.
+   */
+  private static int appendEscaped(StringBuilder result, String url, int index) {
+    int codePoint = url.codePointAt(index);
+    int next = index + Character.charCount(codePoint);
+
+    if (codePoint < 0x80) {
+      appendByte(result, codePoint);
+    } else if (codePoint < 0x800) {
+      appendByte(result, 0xC0 | (codePoint >> 6));
+      appendByte(result, 0x80 | (codePoint & 0x3F));
+    } else if (codePoint < 0x10000) {
+      appendByte(result, 0xE0 | (codePoint >> 12));
+      appendByte(result, 0x80 | ((codePoint >> 6) & 0x3F));
+      appendByte(result, 0x80 | (codePoint & 0x3F));
+    } else {
+      appendByte(result, 0xF0 | (codePoint >> 18));
+      appendByte(result, 0x80 | ((codePoint >> 12) & 0x3F));
+      appendByte(result, 0x80 | ((codePoint >> 6) & 0x3F));
+      appendByte(result, 0x80 | (codePoint & 0x3F));
+    }
+
+    return next;
+  }
+
+  private static void appendByte(StringBuilder result, int b) {
+    result.append('%');
+    result.append(HEX_DIGITS[(b >> 4) & 0x0F]);
+    result.append(HEX_DIGITS[b & 0x0F]);
+  }
+
+  /**
+   * @return value of the two hex digits at url[index], or -1 if they're not
+   *         hex digits.
+   */
+  private static int decodeHex(String url, int index) {
+    int high = Character.digit(url.charAt(index), 16);
+    int low = Character.digit(url.charAt(index + 1), 16);
+    return ((high == -1) || (low == -1)) ? -1 : (high << 4) | low;
+  }
+
+  private static boolean isIllegal(char c) {
+    return (c <= ' ') || (c >= 0x7F) || (ILLEGAL_CHARS.indexOf(c) != -1);
+  }
+
+  private static boolean isIpAddress(String host) {
+    if (host.startsWith("[")) {
+      return true;
+    }
+
+    for (int i = 0; i < host.length(); i++) {
+      char c = host.charAt(i);
+      if (((c < '0') || (c > '9')) && (c != '.')) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean isGenericSld(String host, int start, int end) {
+    for (String sld : GENERIC_SLDS) {
+      if ((sld.length() == end - start) && host.regionMatches(start, sld, 0, sld.length())) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}